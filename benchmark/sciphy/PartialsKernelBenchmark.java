@@ -0,0 +1,66 @@
+package sciphy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sciphy.evolution.likelihood.PartialsKernel;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH comparison of the scalar and vector partials kernels for array lengths 5, 20 and 100: the time of the sum from
+ * the unedited state to all states of a child, on random probabilities and partials. Run with "ant benchmark".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Thread)
+public class PartialsKernelBenchmark {
+
+    @Param({"5", "20", "100"})
+    int arrayLength;
+
+    @Param({"false", "true"})
+    boolean useVectorKernel;
+
+    PartialsKernel kernel;
+    double[] poissonProbabilities;
+    double[] absorbingStateProbabilities;
+    double[] insertFactors;
+    double[] childPartials;
+
+    @Setup
+    public void setUp() {
+
+        kernel = PartialsKernel.create(useVectorKernel);
+        Random random = new Random(1);
+        poissonProbabilities = new double[arrayLength + 1];
+        absorbingStateProbabilities = new double[arrayLength + 1];
+        insertFactors = new double[arrayLength + 1];
+        childPartials = new double[arrayLength + 1];
+        for (int n = 0; n <= arrayLength; n++) {
+            poissonProbabilities[n] = random.nextDouble();
+            absorbingStateProbabilities[n] = random.nextDouble();
+            insertFactors[n] = random.nextDouble();
+            // some end states are not possible at the child
+            childPartials[n] = random.nextInt(4) == 0 ? 0.0 : random.nextDouble();
+        }
+    }
+
+    @Benchmark
+    public double sumTransitionProducts() {
+        return kernel.sumTransitionProducts(insertFactors, poissonProbabilities, absorbingStateProbabilities,
+                childPartials, 0, 0, arrayLength, arrayLength);
+    }
+}
@@ -0,0 +1,134 @@
+package sciphy.evolution.likelihood;
+
+/**
+ * Core keeping the partials of all barcodes and categories of a node in one array, so that calculating a node reads
+ * and writes contiguous memory instead of one array per barcode and category. The partials of barcode b and category c
+ * start at c * stride + offsets[b], and span the arrayLength + 1 states of the barcode. The partials of the leaves are
+ * not stored, as the transition probabilities to a leaf are those to its barcode. It works on double precision
+ * partials on the heap, optionally scaled as in SciPhyTreeLikelihood, with the same order of operations. The core has
+ * its own scaling exponents and sums, so that its scaling is checked independently of the likelihood's by the cross
+ * check.
+ */
+public class ContiguousSciPhyLikelihoodCore implements SciPhyLikelihoodCore {
+
+    protected SciPhyTreeLikelihood likelihood;
+    protected int stride;
+    protected int[] offsets;
+
+    // indexed by buffer and node number
+    protected double[][][] partials;
+    // null if the partials are not scaled
+    protected ScalingExponents scalingExponents;
+
+    @Override
+    public void initialize(SciPhyTreeLikelihood likelihood) {
+
+        this.likelihood = likelihood;
+        offsets = new int[likelihood.barcodeCount];
+        stride = 0;
+        for (int b = 0; b < likelihood.barcodeCount; b++) {
+            offsets[b] = stride;
+            stride += likelihood.arrayLengths[b] + 1;
+        }
+
+        final int categoryCount = likelihood.m_siteModel.getCategoryCount();
+        final int leafCount = likelihood.treeInput.get().getLeafNodeCount();
+        partials = new double[2][likelihood.nodeCount][];
+        for (int i = leafCount; i < likelihood.nodeCount; i++) {
+            partials[0][i] = new double[categoryCount * stride];
+            partials[1][i] = new double[categoryCount * stride];
+        }
+        if (likelihood.useScaling) {
+            scalingExponents = new ScalingExponents(likelihood.barcodeCount, categoryCount, likelihood.nodeCount);
+        }
+    }
+
+    @Override
+    public void setLeafData(int barcode, int leafNr) {
+        // the transitions to a leaf are calculated from its barcode
+    }
+
+    @Override
+    public void calculatePartials(int nodeNr, int child1Nr, int child2Nr, int categoryId) {
+
+        final SciPhyTreeLikelihood l = likelihood;
+        final double[] nodePartials = partials[l.currentPartialsIndex[nodeNr]][nodeNr];
+        for (int b : l.editedBarcodes) {
+            final int offset = categoryId * stride + offsets[b];
+            final int maxPrefixLength = l.ancestralPrefixLengths[b][l.currentStatesIndex[nodeNr]][nodeNr];
+
+            for (int startLength = maxPrefixLength; startLength >= 0; --startLength) {
+                nodePartials[offset + startLength] = calculatePartialLikelihoodState(b, startLength, child1Nr, categoryId) *
+                        calculatePartialLikelihoodState(b, startLength, child2Nr, categoryId);
+            }
+
+            if (scalingExponents != null) {
+                scalingExponents.scale(nodePartials, offset, maxPrefixLength + 1, b, categoryId, l.currentPartialsIndex[nodeNr], nodeNr);
+            }
+        }
+    }
+
+    /**
+     * @return partial likelihood of state startLength above the branch of node childNr, as
+     * SciPhyTreeLikelihood.calculatePartialLikelihoodState
+     */
+    protected double calculatePartialLikelihoodState(int barcode, int startLength, int childNr, int categoryId) {
+
+        final SciPhyTreeLikelihood l = likelihood;
+        final int childReference = l.ancestralReferences[barcode][l.currentStatesIndex[childNr]][childNr];
+        final double[][] childInsertFactors = l.insertFactors[barcode][childReference];
+        final int childPrefixLength = l.ancestralPrefixLengths[barcode][l.currentStatesIndex[childNr]][childNr];
+        final double[] poissonProbs = l.poissonProbabilities[categoryId][childNr];
+        final double[] absorbingProbs = l.absorbingStateProbabilities[categoryId][childNr];
+
+        if (l.leftChildren[childNr] < 0) {
+            return l.substitutionModel.getSequenceTransitionProbability(childInsertFactors, startLength, childPrefixLength,
+                    poissonProbs, absorbingProbs, l.arrayLengths[barcode]);
+        }
+        return l.partialsKernel.sumTransitionProducts(childInsertFactors[startLength], poissonProbs, absorbingProbs,
+                partials[l.currentPartialsIndex[childNr]][childNr], categoryId * stride + offsets[barcode],
+                startLength, childPrefixLength, l.arrayLengths[barcode]);
+    }
+
+    @Override
+    public void calculateRootLogLikelihoods(int rootNr, int categoryId, double[][] logLikelihoods) {
+
+        final SciPhyTreeLikelihood l = likelihood;
+        if (scalingExponents != null) {
+            for (int k = 0; k < l.updateCount; k++) {
+                scalingExponents.update(l.editedBarcodes, categoryId, l.currentPartialsIndex[l.updateNodes[k]], l.updateNodes[k]);
+            }
+        }
+        for (int b : l.editedBarcodes) {
+            final double logScalingFactor = scalingExponents == null ? 0.0 : scalingExponents.getLogScalingFactor(b, categoryId);
+
+            if (l.originTime == 0.0) {
+                //sum of all partial likelihoods at the root
+                final double[] rootPartials = partials[l.currentPartialsIndex[rootNr]][rootNr];
+                final int offset = categoryId * stride + offsets[b];
+                double rootPartialsSum = 0.0;
+                for (int k = 0; k <= l.ancestralPrefixLengths[b][l.currentStatesIndex[rootNr]][rootNr]; k++) {
+                    rootPartialsSum += rootPartials[offset + k];
+                }
+                logLikelihoods[b][categoryId] = Math.log(rootPartialsSum) + logScalingFactor;
+            } else {
+                //the tree log likelihood is the log(p) of unedited state at the origin
+                logLikelihoods[b][categoryId] = Math.log(calculatePartialLikelihoodState(b, 0, rootNr, categoryId)) + logScalingFactor;
+            }
+        }
+    }
+
+    @Override
+    public void store() {
+        if (scalingExponents != null) {
+            scalingExponents.store();
+        }
+    }
+
+    @Override
+    public void restore() {
+        if (scalingExponents != null) {
+            scalingExponents.restore();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package sciphy.evolution.likelihood;
+
+/**
+ * Runs a core side by side with the reference core, and stops the calculation as soon as both disagree on the log
+ * likelihood of a barcode in a category, so that a new core can be checked on real analyses. Each core scales its
+ * partials with its own scaling exponents, so the log likelihoods compared include the scaling of each core.
+ */
+public class CrossCheckSciPhyLikelihoodCore implements SciPhyLikelihoodCore {
+
+    static final double RELATIVE_TOLERANCE = 1e-9;
+
+    protected final SciPhyLikelihoodCore core;
+    protected final SciPhyLikelihoodCore referenceCore;
+    protected SciPhyTreeLikelihood likelihood;
+    protected double[][] referenceLogLikelihoods;
+
+    public CrossCheckSciPhyLikelihoodCore(SciPhyLikelihoodCore core, SciPhyLikelihoodCore referenceCore) {
+        this.core = core;
+        this.referenceCore = referenceCore;
+    }
+
+    @Override
+    public void initialize(SciPhyTreeLikelihood likelihood) {
+
+        this.likelihood = likelihood;
+        core.initialize(likelihood);
+        referenceCore.initialize(likelihood);
+        referenceLogLikelihoods = new double[likelihood.barcodeCount][likelihood.m_siteModel.getCategoryCount()];
+    }
+
+    @Override
+    public void setLeafData(int barcode, int leafNr) {
+        core.setLeafData(barcode, leafNr);
+        referenceCore.setLeafData(barcode, leafNr);
+    }
+
+    @Override
+    public void calculatePartials(int nodeNr, int child1Nr, int child2Nr, int categoryId) {
+        core.calculatePartials(nodeNr, child1Nr, child2Nr, categoryId);
+        referenceCore.calculatePartials(nodeNr, child1Nr, child2Nr, categoryId);
+    }
+
+    @Override
+    public void calculateRootLogLikelihoods(int rootNr, int categoryId, double[][] logLikelihoods) {
+
+        core.calculateRootLogLikelihoods(rootNr, categoryId, logLikelihoods);
+        referenceCore.calculateRootLogLikelihoods(rootNr, categoryId, referenceLogLikelihoods);
+        for (int b : likelihood.editedBarcodes) {
+            final double logL = logLikelihoods[b][categoryId];
+            final double referenceLogL = referenceLogLikelihoods[b][categoryId];
+            if (logL != referenceLogL && !(Math.abs(logL - referenceLogL) <= RELATIVE_TOLERANCE * Math.max(1.0, Math.abs(referenceLogL)))) {
+                throw new IllegalStateException(String.format(
+                        "Likelihood cores disagree on barcode %d in category %d: %s gives %s and %s gives %s",
+                        b, categoryId, core.getClass().getSimpleName(), logL, referenceCore.getClass().getSimpleName(), referenceLogL));
+            }
+        }
+    }
+
+    @Override
+    public void store() {
+        core.store();
+        referenceCore.store();
+    }
+
+    @Override
+    public void restore() {
+        core.restore();
+        referenceCore.restore();
+    }
+}
@@ -0,0 +1,49 @@
+package sciphy.evolution.likelihood;
+
+import beast.base.core.Log;
+
+/**
+ * Inner loop of the partials of SciPhyTreeLikelihood: the sum, over the end states of a branch, of the transition
+ * probability from a start state times the partial of the child at the end state. The scalar kernel is used unless the
+ * vector kernel is asked for and the jdk.incubator.vector module is available, i.e. BEAST runs with
+ * --add-modules jdk.incubator.vector.
+ */
+public interface PartialsKernel {
+
+    /**
+     * @param insertFactors factors of the runs of edits from startLength of the reference barcode of the child
+     * @param poissonProbabilities probabilities of n edits on the branch
+     * @param absorbingStateProbabilities probabilities of at least n edits on the branch
+     * @param childPartials partials of the child, indexed by prefix length from childOffset
+     * @param childOffset index of the partial of prefix length 0 in childPartials
+     * @param startLength number of edits in the state at the parent node
+     * @param childPrefixLength longest prefix in the ancestral states of the child
+     * @param arrayLength number of positions in the barcode
+     * @return sum over endLength from startLength to childPrefixLength of the transition probability times
+     * childPartials[childOffset + endLength]
+     */
+    double sumTransitionProducts(double[] insertFactors, double[] poissonProbabilities, double[] absorbingStateProbabilities,
+                                 double[] childPartials, int childOffset, int startLength, int childPrefixLength, int arrayLength);
+
+    /**
+     * @return the vector kernel if useVectorKernel is true and the vector module is available, else the scalar kernel
+     */
+    static PartialsKernel create(boolean useVectorKernel) {
+
+        if (useVectorKernel) {
+            if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+                try {
+                    // loaded by name, so that the scalar kernel works without the vector module
+                    return (PartialsKernel) Class.forName("sciphy.evolution.likelihood.VectorPartialsKernel")
+                            .getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    Log.warning.println("The vector kernel could not be loaded, the scalar kernel is used: " + e);
+                }
+            } else {
+                Log.warning.println("The module jdk.incubator.vector is not available, the scalar kernel is used. " +
+                        "Run with --add-modules jdk.incubator.vector to use the vector kernel.");
+            }
+        }
+        return new ScalarPartialsKernel();
+    }
+}
@@ -0,0 +1,44 @@
+package sciphy.evolution.likelihood;
+
+/**
+ * The calculations of SciPhyTreeLikelihood itself, on its partials: in double or single precision, scaled or as logs,
+ * on or off the heap. Its scaling exponents are those of the likelihood, which updates, stores and restores their sums.
+ */
+public class ReferenceSciPhyLikelihoodCore implements SciPhyLikelihoodCore {
+
+    protected SciPhyTreeLikelihood likelihood;
+
+    @Override
+    public void initialize(SciPhyTreeLikelihood likelihood) {
+        this.likelihood = likelihood;
+    }
+
+    @Override
+    public void setLeafData(int barcode, int leafNr) {
+        likelihood.initLeafPartials(barcode, leafNr);
+    }
+
+    @Override
+    public void calculatePartials(int nodeNr, int child1Nr, int child2Nr, int categoryId) {
+
+        likelihood.calculateNodePartials(nodeNr, child1Nr, child2Nr, categoryId);
+        if (likelihood.useScaling) {
+            for (int b : likelihood.editedBarcodes) {
+                likelihood.scalePartials(b, categoryId, nodeNr);
+            }
+        }
+    }
+
+    @Override
+    public void calculateRootLogLikelihoods(int rootNr, int categoryId, double[][] logLikelihoods) {
+        likelihood.calculateRootLogLikelihoods(rootNr, categoryId, logLikelihoods);
+    }
+
+    @Override
+    public void store() {
+    }
+
+    @Override
+    public void restore() {
+    }
+}
@@ -0,0 +1,26 @@
+package sciphy.evolution.likelihood;
+
+/**
+ * Scalar partials kernel: the end states are visited from the longest to the shortest, and those of partial 0 are
+ * skipped. The transition probability is computed as in SciPhySubstitutionModel.getSequenceTransitionProbability.
+ */
+public class ScalarPartialsKernel implements PartialsKernel {
+
+    @Override
+    public double sumTransitionProducts(double[] insertFactors, double[] poissonProbabilities, double[] absorbingStateProbabilities,
+                                        double[] childPartials, int childOffset, int startLength, int childPrefixLength, int arrayLength) {
+
+        final int nrOfPossibleInserts = arrayLength - startLength;
+        double sum = 0;
+        for (int endLength = childPrefixLength; endLength >= startLength; --endLength) {
+            if (childPartials[childOffset + endLength] != 0.0) {
+                final int nrOfNewInserts = endLength - startLength;
+                final double probability = nrOfNewInserts == nrOfPossibleInserts ?
+                        absorbingStateProbabilities[nrOfPossibleInserts] * insertFactors[nrOfNewInserts] :
+                        poissonProbabilities[nrOfNewInserts] * insertFactors[nrOfNewInserts];
+                sum = sum + probability * childPartials[childOffset + endLength];
+            }
+        }
+        return sum;
+    }
+}
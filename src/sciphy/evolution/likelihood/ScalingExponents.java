@@ -0,0 +1,92 @@
+package sciphy.evolution.likelihood;
+
+/**
+ * Exponents of the powers of 2 by which the partials of the nodes are scaled, indexed like the partials by
+ * [barcode][categoryId][bufferIndex][nodeNr], and their sums over the nodes per barcode and category.
+ * Scaling by a power of 2 is exact, and as the exponents are integers the sums are updated with the change of exponent
+ * at each recalculated node without drifting: they stay equal to a sum over the tree, without a sweep over the tree.
+ * The sums are stored and restored with the buffers of the partials.
+ */
+public class ScalingExponents {
+
+    /**
+     * Partials whose maximum is below this threshold are scaled
+     */
+    public static final double SCALING_THRESHOLD = 1.0E-100;
+
+    static final double LOG_2 = Math.log(2.0);
+
+    protected final int[][][][] exponents;
+    protected int[][] sums;
+    protected int[][] storedSums;
+
+    public ScalingExponents(int barcodeCount, int categoryCount, int nodeCount) {
+        exponents = new int[barcodeCount][categoryCount][2][nodeCount];
+        sums = new int[barcodeCount][categoryCount];
+        storedSums = new int[barcodeCount][categoryCount];
+    }
+
+    /**
+     * Scale the partials from offset to offset + length by the power of 2 of their maximum if it is below
+     * SCALING_THRESHOLD, and save the exponent of the scaling of node nodeNr in buffer bufferIndex, 0 if not scaled.
+     *
+     * @return the exponent
+     */
+    public int scale(double[] partials, int offset, int length, int barcode, int categoryId, int bufferIndex, int nodeNr) {
+
+        double scaleFactor = 0.0;
+        for (int k = offset; k < offset + length; k++) {
+            if (partials[k] > scaleFactor) {
+                scaleFactor = partials[k];
+            }
+        }
+        int exponent = 0;
+        if (scaleFactor < SCALING_THRESHOLD) {
+            exponent = Math.getExponent(scaleFactor);
+            for (int k = offset; k < offset + length; k++) {
+                partials[k] = Math.scalb(partials[k], -exponent);
+            }
+        }
+        exponents[barcode][categoryId][bufferIndex][nodeNr] = exponent;
+        return exponent;
+    }
+
+    public int getExponent(int barcode, int categoryId, int bufferIndex, int nodeNr) {
+        return exponents[barcode][categoryId][bufferIndex][nodeNr];
+    }
+
+    public void setExponent(int barcode, int categoryId, int bufferIndex, int nodeNr, int exponent) {
+        exponents[barcode][categoryId][bufferIndex][nodeNr] = exponent;
+    }
+
+    /**
+     * Add the change of the exponents of node nodeNr in category categoryId to the sums of the barcodes, after the
+     * partials of the node were calculated in buffer currentIndex, i.e. replaced those of the other buffer.
+     */
+    public void update(int[] barcodes, int categoryId, int currentIndex, int nodeNr) {
+
+        for (int b : barcodes) {
+            final int[][] nodeExponents = exponents[b][categoryId];
+            sums[b][categoryId] += nodeExponents[currentIndex][nodeNr] - nodeExponents[1 - currentIndex][nodeNr];
+        }
+    }
+
+    /**
+     * @return the log of the product of the scaling factors of all nodes for barcode in category categoryId
+     */
+    public double getLogScalingFactor(int barcode, int categoryId) {
+        return sums[barcode][categoryId] * LOG_2;
+    }
+
+    public void store() {
+        for (int b = 0; b < sums.length; b++) {
+            System.arraycopy(sums[b], 0, storedSums[b], 0, sums[b].length);
+        }
+    }
+
+    public void restore() {
+        int[][] tmp = sums;
+        sums = storedSums;
+        storedSums = tmp;
+    }
+}
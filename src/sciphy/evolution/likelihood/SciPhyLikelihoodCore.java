@@ -0,0 +1,44 @@
+package sciphy.evolution.likelihood;
+
+/**
+ * Likelihood calculations of SciPhyTreeLikelihood on the partials, analogous to the LikelihoodCore of BEAST. The tree
+ * likelihood traverses the tree and keeps what all cores share: the ancestral states of the nodes, the insert factors
+ * of the leaf barcodes and the Poisson tables of the branches, see SciPhyTreeLikelihood. A core keeps the partials
+ * and scaling exponents of the nodes, in the buffers given by the currentPartialsIndex of the likelihood, so that they
+ * are stored and restored with it, and the sums of its scaling exponents, which it stores and restores when the
+ * likelihood does.
+ */
+public interface SciPhyLikelihoodCore {
+
+    /**
+     * Set up the partials of the likelihood, after the leaf barcodes and the ancestral states of the leaves
+     */
+    void initialize(SciPhyTreeLikelihood likelihood);
+
+    /**
+     * Set the partials of leaf leafNr for barcode, whose only state is the observed barcode
+     */
+    void setLeafData(int barcode, int leafNr);
+
+    /**
+     * Calculate the partials of category categoryId at node nodeNr for the edited barcodes, given the partials of its
+     * children, their ancestral states and the Poisson tables of both child branches.
+     */
+    void calculatePartials(int nodeNr, int child1Nr, int child2Nr, int categoryId);
+
+    /**
+     * Integrate the partials at the root rootNr, or at the origin if the likelihood has one, and set
+     * logLikelihoods[barcode][categoryId] for the edited barcodes.
+     */
+    void calculateRootLogLikelihoods(int rootNr, int categoryId, double[][] logLikelihoods);
+
+    /**
+     * Store the state of the core that is not in the buffers of the partials, when the likelihood is stored
+     */
+    void store();
+
+    /**
+     * Restore the state of the core that is not in the buffers of the partials, when the likelihood is restored
+     */
+    void restore();
+}
@@ -0,0 +1,72 @@
+package sciphy.evolution.likelihood;
+
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.evolution.alignment.Alignment;
+
+@Description("tree likelihood for several SciPhy alignments, one per target barcode, evolving on the same tree with the " +
+        "same site model and branch rate model. The tree is traversed once per calculation and the per branch quantities " +
+        "are shared by all barcodes, instead of using one SciPhyTreeLikelihood per alignment. " +
+        "When logged, the log likelihood of each barcode is reported in its own column.")
+
+public class SciPhyMultiBarcodeTreeLikelihood extends SciPhyTreeLikelihood {
+
+    final public Input<List<Alignment>> alignmentInput = new Input<>("alignment", "alignments of the target barcodes, " +
+            "arrayLength is either the length of all barcodes, or one length per alignment", new ArrayList<>());
+
+    public SciPhyMultiBarcodeTreeLikelihood() {
+        dataInput.setRule(Validate.OPTIONAL);
+    }
+
+    @Override
+    public void initAndValidate() {
+        if (alignmentInput.get().isEmpty() && dataInput.get() == null) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid alignment input: at least one alignment is required"));
+        }
+        super.initAndValidate();
+    }
+
+    /**
+     * @return the alignments of the target barcodes, the alignment of the data input (if any) followed by the
+     * alignment inputs
+     */
+    @Override
+    protected List<Alignment> getAlignments() {
+        List<Alignment> barcodeAlignments = new ArrayList<>();
+        if (dataInput.get() != null) {
+            barcodeAlignments.add(dataInput.get());
+        }
+        barcodeAlignments.addAll(alignmentInput.get());
+        return barcodeAlignments;
+    }
+
+    public int getBarcodeCount() {
+        return barcodeCount;
+    }
+
+    /**
+     * Loggable implementation: one column per barcode, named after the alignment
+     */
+    @Override
+    public void init(PrintStream out) {
+        for (int b = 0; b < barcodeCount; b++) {
+            String alignmentID = alignments.get(b).getID() != null ? alignments.get(b).getID() : Integer.toString(b + 1);
+            out.print(getID() + "." + alignmentID + "\t");
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        for (int b = 0; b < barcodeCount; b++) {
+            out.print(getBarcodeLogP(b) + "\t");
+        }
+    }
+
+}
@@ -1,10 +1,19 @@
 package sciphy.evolution.likelihood;
 
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
 
 import beast.base.core.Description;
 import beast.base.core.Log;
+import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.likelihood.GenericTreeLikelihood;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
@@ -19,10 +28,13 @@ import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
 import sciphy.evolution.substitutionmodel.SciPhySubstitutionModel;
+import sciphy.util.WorkerThreads;
 import static sciphy.util.LogSum.logSum;
 
 @Description("tree likelihood for a SciPhy alignment given a generic SiteModel, " +
-        "a beast tree and a branch rate model. This is a version of the SciPhy likelihood using caching without a likelihoodCore implementation ")
+        "a beast tree and a branch rate model. The partials are calculated by a SciPhyLikelihoodCore, the reference " +
+        "core or the contiguous core, which can be cross checked against the reference core, and are cached " +
+        "between calculations so that only the nodes whose subtree changed are recalculated.")
 
 public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
 
@@ -33,11 +45,59 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
     final public Input<Boolean> useScalingInput = new Input<Boolean>("useScaling", "Whether or not to scale the log likelihood", false,
             Validate.OPTIONAL);
 
+    final public Input<Boolean> useLogSpaceInput = new Input<>("useLogSpace", "Whether or not to keep the partial " +
+            "likelihoods as logs, so that they never underflow, instead of scaling them (default false)", false);
+
+    final public Input<Boolean> useFloatPartialsInput = new Input<>("useFloatPartials", "Whether or not to store the " +
+            "partial likelihoods in single precision to halve their memory, the partials of every node are then scaled " +
+            "(default false)", false);
+
+    final public Input<Boolean> useOffHeapPartialsInput = new Input<>("useOffHeapPartials", "Whether or not to store the " +
+            "partial likelihoods outside of the Java heap, in memory allocated once at initialisation, so that they " +
+            "are not traced by the garbage collector (default false)", false);
+
+    final public Input<Boolean> useVectorKernelInput = new Input<>("useVectorKernel", "Whether or not to sum the " +
+            "transition probabilities times the child partials with the vector API, if BEAST runs with " +
+            "--add-modules jdk.incubator.vector, otherwise the scalar kernel is used (default false)", false);
+
+    public enum Core {reference, contiguous}
+
+    final public Input<Core> coreInput = new Input<>("core", "implementation of the calculations on the partials: " +
+            "reference, those of this likelihood in all storage modes, or contiguous, the partials of all barcodes and " +
+            "categories of a node in one array, for double precision partials on the heap without cache (default reference)",
+            Core.reference, Core.values());
+
+    final public Input<Boolean> crossCheckCoreInput = new Input<>("crossCheckCore", "Whether or not to run the " +
+            "reference core side by side with core, and to stop as soon as they disagree on a log likelihood (default false)", false);
+
+    final public Input<Integer> categoryThreadsInput = new Input<>("categoryThreads", "number of threads evaluating the " +
+            "site rate categories in parallel (default 1, the categories are evaluated one after another)", 1);
+
+    final public Input<Integer> subtreeThreadsInput = new Input<>("subtreeThreads", "number of threads evaluating " +
+            "independent subtrees in parallel, with a fork join pool (default 1, the nodes are evaluated one after another)", 1);
+
+    final public Input<Integer> subtreeTaskSizeInput = new Input<>("subtreeTaskSize", "number of nodes to recalculate " +
+            "below which a subtree is evaluated by a single thread, when subtreeThreads is more than 1 (default 64)", 64);
+
+    final public Input<Integer> partialsCacheSizeInput = new Input<>("partialsCacheSize", "number of subtrees whose " +
+            "partials are kept in a least recently used cache, so that a subtree proposed again is looked up instead " +
+            "of recalculated, if 0 there is no cache (default 0)", 0);
+
     protected SciPhySubstitutionModel substitutionModel;
     protected BranchRateModel.Base branchRateModel;
     protected SiteModel.Base m_siteModel;
     protected double originTime;
     protected int nodeCount;
+
+    /**
+     * Alignments of the target barcodes evolving on the tree, and their number of positions. All barcodes share the
+     * tree, site model and branch rate model, so a single traversal updates the partials of every barcode.
+     * Per barcode arrays below are indexed by the barcode first.
+     * arrayLength is the largest number of positions, which sizes the Poisson probability tables shared by all barcodes.
+     */
+    protected List<Alignment> alignments;
+    protected int barcodeCount;
+    protected int[] arrayLengths;
     protected int arrayLength;
 
 
@@ -61,16 +121,115 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
     protected double[] m_branchLengths;
     protected double[] storedBranchLengths;
 
-    //to be able to have current/stored states in an analog way to the partials array, ancestral states are accessed/added
-    //states with key being the hashcode of: nodeIndex + currentStatesIndex[nodeIndex] + nodeIndex
-    public Hashtable<Integer, List<List<Integer>>> ancestralStates;
-    public double[][][] partialLikelihoods;
-    public double[] categoryLogLikelihoods;
-    protected double[][] scalingFactors;
+    /**
+     * Sum of m_branchLengths over all nodes, the root having none, for the closed form of the unedited barcodes.
+     * It is adjusted by traverse for the branches that changed only, and summed again when the whole tree is dirty,
+     * so that the rounding errors of the adjustments do not accumulate over accepted proposals.
+     */
+    protected double totalBranchTime;
+    protected double storedTotalBranchTime;
+
+    /**
+     * Rates of the branch above each node, looked up by traverse, and of each site category, looked up once per
+     * calculation, so that the Poisson tables are updated without going through the branch rate and site models
+     */
+    protected double[] branchRates;
+    protected double[] categoryRates;
+
+    /**
+     * Because edits are ordered, every possible ancestral state of a node is a prefix of the barcode observed at
+     * any leaf below it. The set of ancestral states of a node is therefore stored as a pair
+     * {reference leaf number, maximum prefix length}: the node can be in any state obtained by keeping the first
+     * 0..maxPrefixLength edits of the reference barcode.
+     * To have current/stored states in an analog way to the partials array, both are indexed by
+     * [barcode][currentStatesIndex[nodeIndex]][nodeIndex].
+     */
+    protected int[][][] ancestralReferences;
+    protected int[][][] ancestralPrefixLengths;
+
+    /**
+     * Barcodes observed at the leaves: the full sequence and the ordered list of its edits (unedited sites removed),
+     * indexed by [barcode][leafIndex]
+     */
+    protected int[][][] leafBarcodes;
+    protected int[][][] leafEdits;
+
+    /**
+     * Products of the edit probabilities along the edits of each leaf barcode, so that the insert factor of any
+     * transition between two prefixes is a lookup: insertFactors[barcode][leafIndex][startLength][nrOfNewInserts].
+     * logInsertPrefixProducts[barcode][leafIndex][prefixLength] holds the log of the factor of each prefix, and in
+     * log space mode logInsertFactors holds the logs of insertFactors.
+     * Leaves with identical barcodes share their tables, which are recomputed when the edit probabilities they were
+     * computed for change.
+     */
+    protected double[][][][] insertFactors;
+    protected double[][][][] logInsertFactors;
+    protected double[][][] logInsertPrefixProducts;
+    protected double[] insertFactorsEditProbabilities;
+    // one leaf for each distinct barcode, owning the tables shared with the leaves of identical barcodes
+    protected int[][] distinctBarcodeLeaves;
+    /**
+     * Barcodes with an observed edit of probability 0: with an origin, every edit of a leaf is inserted on a branch
+     * of the path from the origin to the leaf, so their likelihood is 0 whatever the tree.
+     */
+    protected boolean[] infeasibleBarcodes;
+    protected boolean hasInfeasibleBarcode;
+    /**
+     * Barcodes with at least one edit, whose partials are calculated at every node, and barcodes unedited at all
+     * leaves. The only state of an unedited barcode is the unedited one, so its likelihood is the probability of no
+     * edit on any branch, exp(-categoryRate * total branch length times rate), and no partial is calculated for it.
+     */
+    protected int[] editedBarcodes;
+    protected int[] uneditedBarcodes;
+
+    //partial likelihoods of a node, indexed by [barcode][categoryId][currentPartialsIndex[nodeIndex]][nodeIndex][prefixLength]
+    public double[][][][][] partialLikelihoods;
+    //log likelihoods of each barcode, per category and summed over categories
+    public double[][] categoryLogLikelihoods;
+    protected double[] barcodeLogLikelihoods;
+    protected double[] storedBarcodeLogLikelihoods;
     protected boolean useScaling = false;
 
+    /**
+     * Scaled partials are multiplied by a power of 2, whose exponent and the sums of the exponents over the nodes are
+     * kept in scalingExponents, see ScalingExponents. The sums are updated with the change of exponent at each
+     * recalculated node, so that the log scaling factor does not need a sweep over the tree.
+     */
+    protected ScalingExponents scalingExponents;
+
+    /**
+     * In log space mode the partials, the Poisson tables and the insert factors hold log probabilities. Partials are
+     * combined with a log-sum-exp, so they never underflow and need no scaling.
+     */
+    protected boolean useLogSpace = false;
+
+    /**
+     * In single precision mode the partials are stored as floats in floatPartialLikelihoods, indexed like
+     * partialLikelihoods which is then not allocated. The partials of every node are scaled by the power of 2 of their
+     * maximum, whose exponent is kept in scalingExponents, so that they stay in the range of floats. Transition probabilities, products and
+     * sums are still computed in double, using one partialsBuffer per category.
+     */
+    protected boolean useFloatPartials = false;
+    public float[][][][][] floatPartialLikelihoods;
+    protected double[][] partialsBuffers;
+
+    /**
+     * With off heap storage, the partials of each barcode are stored in one contiguous direct buffer allocated at
+     * initialisation, partialLikelihoods is then not allocated. The partials of a node start at
+     * getOffHeapOffset(barcode, categoryId, bufferIndex, nodeNr) and span arrayLengths[barcode] + 1 states.
+     * They are copied to childPartialsBuffers[categoryId][childIndex] to be read, once per node for each child, and
+     * computed in partialsBuffers[categoryId].
+     */
+    protected boolean useOffHeapPartials = false;
+    protected DoubleBuffer[] offHeapPartials;
+    protected double[][][] childPartialsBuffers;
+
+    // sums the transition probabilities times the child partials in double precision, see PartialsKernel
+    protected PartialsKernel partialsKernel;
+
+    // calculations on the partials, see SciPhyLikelihoodCore
+    protected SciPhyLikelihoodCore likelihoodCore;
 
-    private double scalingThreshold = 1.0E-100;
 
     protected int[] currentPartialsIndex;
     protected int[] storedPartialsIndex;
@@ -78,13 +237,116 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
     protected int[] currentStatesIndex;
     protected int[] storedStatesIndex;
 
+    /**
+     * Flat snapshot of the tree: the children and the parent of each node (-1 if none), the node heights, and the node
+     * numbers in post order (left subtree, right subtree, node). The height of a node is read again only when it is
+     * dirty, its children only when it is filthy, i.e. when its subtree changed, and the post order is only rebuilt
+     * when a child or the root changed.
+     * The kernels loop over these arrays instead of recursing over the Node objects, so deep trees do not overflow
+     * the stack. The snapshot is kept through store/restore, as a restored tree does not mark its nodes.
+     */
+    protected int[] leftChildren;
+    protected int[] rightChildren;
+    protected int[] parents;
+    protected int[] postOrder;
+    protected int rootNr = -1;
+    protected int[] storedLeftChildren;
+    protected int[] storedRightChildren;
+    protected int[] storedParents;
+    protected int[] storedPostOrder;
+    protected int storedRootNr;
+    protected double[] nodeHeights;
+    protected double[] storedNodeHeights;
+    // update flags of the nodes in the last traversal
+    protected int[] nodeUpdates;
+
+    /**
+     * Numbers of the internal nodes whose partials need to be recalculated, in post order. They are found by a single
+     * traversal of the tree, which also updates the ancestral states since they do not depend on the site category.
+     * The partials of each category are then calculated for these nodes in separate buffers, so that categories can
+     * be evaluated in parallel.
+     */
+    protected int[] updateNodes;
+    protected int updateCount;
+
+    // number of calculations returning -Infinity before any partial is calculated, and of full calculations
+    protected long rejectedCalculationCount;
+    protected long fullCalculationCount;
+
+    /**
+     * Partials of all barcodes and categories at an internal node, with the states they were calculated for
+     */
+    protected static class CachedPartials {
+        long check;
+        int[] prefixLengths;
+        double[][][] partials;
+        int[][] scalingExponents;
+    }
+
+    /**
+     * Least recently used cache of the partials of subtrees, indexed by a hash of the subtree below the node (the
+     * leaves, the topology and the branch lengths times rates) and of the edit probabilities and category rates.
+     * subtreeHashes and subtreeChecks are 2 independent hashes of the subtree below each node, the second one being
+     * compared on lookup. An evicted entry is reused for the next insertion.
+     */
+    protected LinkedHashMap<Long, CachedPartials> partialsCache;
+    protected int partialsCacheSize;
+    protected CachedPartials evictedPartials;
+    protected long[] subtreeHashes;
+    protected long[] storedSubtreeHashes;
+    protected long[] subtreeChecks;
+    protected long[] storedSubtreeChecks;
+    protected long parameterHash;
+    protected long parameterCheck;
+    protected long partialsCacheHitCount;
+    protected long partialsCacheMissCount;
+
+    protected int categoryThreadCount;
+    protected ExecutorService categoryExecutor;
+    protected Runnable[] categoryWorkers;
+    protected Throwable[] categoryExceptions;
+    private CountDownLatch categoryCountDown;
+
+    /**
+     * With more than one subtree thread, the nodes to update are split in independent subtrees, evaluated by
+     * SubtreeTask on subtreePool. updateSubtreeSizes holds the number of nodes to update in the subtree of each node:
+     * as updateNodes is in post order, those of a subtree are contiguous, the nodes of the left subtree first.
+     */
+    protected ForkJoinPool subtreePool;
+    protected int subtreeTaskSize;
+    protected int[] updateSubtreeSizes;
+
+    /**
+     * Poisson probabilities of 0..arrayLength edits on the branch above each node, and the corresponding
+     * probabilities of reaching the absorbing state, indexed by [categoryId][nodeIndex][nrOfEdits] (their logs in
+     * log space mode).
+     * The branch above the root is the stem between the root and the origin.
+     * Tables are only recomputed when the evolutionary distance (branch length * branch rate * category rate)
+     * they were computed for changes.
+     */
+    protected double[][][] poissonProbabilities;
+    protected double[][][] absorbingStateProbabilities;
+    protected double[][] poissonDistances;
+
 
     @Override
     public void initAndValidate() {
-        arrayLength = arrayLengthInput.get().getValue();
-        if (arrayLength < 1 || (dataInput.get().getSiteCount() != arrayLength)) {
+        alignments = getAlignments();
+        barcodeCount = alignments.size();
+        IntegerParameter arrayLengthParameter = arrayLengthInput.get();
+        if (arrayLengthParameter.getDimension() != 1 && arrayLengthParameter.getDimension() != barcodeCount) {
             throw new IllegalArgumentException(String.format(
-                    "Invalid array length: Ensure that length >= 1 and matches alignment "));
+                    "Invalid array length: give either one length for all alignments or one length per alignment"));
+        }
+        arrayLengths = new int[barcodeCount];
+        arrayLength = 0;
+        for (int b = 0; b < barcodeCount; b++) {
+            arrayLengths[b] = arrayLengthParameter.getValue(arrayLengthParameter.getDimension() == 1 ? 0 : b);
+            if (arrayLengths[b] < 1 || (alignments.get(b).getSiteCount() != arrayLengths[b])) {
+                throw new IllegalArgumentException(String.format(
+                        "Invalid array length: Ensure that length >= 1 and matches alignment "));
+            }
+            arrayLength = Math.max(arrayLength, arrayLengths[b]);
         }
         nodeCount = treeInput.get().getNodeCount();
         if (nodeCount <= 2) {
@@ -92,16 +354,51 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
                     "Invalid tree input: single node/branch. Ensure that #nodes>2 "));
         }
         m_siteModel = (SiteModel.Base) siteModelInput.get();
-        categoryLogLikelihoods = new double[m_siteModel.getCategoryCount()];
-        m_siteModel.setDataType(dataInput.get().getDataType());
+        categoryLogLikelihoods = new double[barcodeCount][m_siteModel.getCategoryCount()];
+        barcodeLogLikelihoods = new double[barcodeCount];
+        storedBarcodeLogLikelihoods = new double[barcodeCount];
+        m_siteModel.setDataType(alignments.get(0).getDataType());
         substitutionModel = (SciPhySubstitutionModel) m_siteModel.substModelInput.get();
 
         m_branchLengths = new double[nodeCount];
         storedBranchLengths = new double[nodeCount];
+        branchRates = new double[nodeCount];
+        categoryRates = new double[m_siteModel.getCategoryCount()];
 
         //TODO check that state count from alignment (i.e. data type) and substitution model are the same
-        ancestralStates = new Hashtable<>();
-        partialLikelihoods = new double[2][nodeCount][];
+        ancestralReferences = new int[barcodeCount][2][nodeCount];
+        ancestralPrefixLengths = new int[barcodeCount][2][nodeCount];
+        useFloatPartials = useFloatPartialsInput.get();
+        if (useFloatPartials) {
+            floatPartialLikelihoods = new float[barcodeCount][m_siteModel.getCategoryCount()][2][nodeCount][];
+            partialsBuffers = new double[m_siteModel.getCategoryCount()][arrayLength + 1];
+        }
+        useOffHeapPartials = useOffHeapPartialsInput.get();
+        if (useOffHeapPartials) {
+            if (useFloatPartials) {
+                throw new IllegalArgumentException(String.format(
+                        "Invalid storage input: useFloatPartials and useOffHeapPartials cannot both be true"));
+            }
+            initOffHeapPartials();
+        } else if (!useFloatPartials) {
+            partialLikelihoods = new double[barcodeCount][m_siteModel.getCategoryCount()][2][nodeCount][];
+        }
+        updateNodes = new int[nodeCount];
+        leftChildren = new int[nodeCount];
+        rightChildren = new int[nodeCount];
+        parents = new int[nodeCount];
+        Arrays.fill(leftChildren, -1);
+        Arrays.fill(rightChildren, -1);
+        Arrays.fill(parents, -1);
+        postOrder = new int[nodeCount];
+        storedLeftChildren = leftChildren.clone();
+        storedRightChildren = rightChildren.clone();
+        storedParents = parents.clone();
+        storedPostOrder = new int[nodeCount];
+        storedRootNr = -1;
+        nodeHeights = new double[nodeCount];
+        storedNodeHeights = new double[nodeCount];
+        nodeUpdates = new int[nodeCount];
 
         currentPartialsIndex = new int[nodeCount];
         storedPartialsIndex = new int[nodeCount];
@@ -109,6 +406,13 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
         currentStatesIndex = new int[nodeCount];
         storedStatesIndex = new int[nodeCount];
 
+        poissonProbabilities = new double[m_siteModel.getCategoryCount()][nodeCount][arrayLength + 1];
+        absorbingStateProbabilities = new double[m_siteModel.getCategoryCount()][nodeCount][arrayLength + 1];
+        poissonDistances = new double[m_siteModel.getCategoryCount()][nodeCount];
+        for (double[] distances : poissonDistances) {
+            Arrays.fill(distances, Double.NaN);
+        }
+
         if (branchRateModelInput.get() != null) {
             branchRateModel = branchRateModelInput.get();
         } else {
@@ -123,22 +427,357 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
             }
         }
 
+        useLogSpace = useLogSpaceInput.get();
+        if (useLogSpace && useScalingInput.get()) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid scaling input: partials in log space are not scaled, useScaling and useLogSpace cannot both be true"));
+        }
+        if (useFloatPartials && (useLogSpace || useScalingInput.get())) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid scaling input: single precision partials are always scaled, useFloatPartials cannot be combined with useScaling or useLogSpace"));
+        }
         if (useScalingInput.get()) {
             useScaling = true;
-            scalingFactors = new double[2][nodeCount];
         }
+        if (useScaling || useFloatPartials) {
+            scalingExponents = new ScalingExponents(barcodeCount, m_siteModel.getCategoryCount(), nodeCount);
+        }
+
+        initLeafBarcodes();
+        partialsKernel = PartialsKernel.create(useVectorKernelInput.get());
+        initCategoryThreads();
+        initSubtreeThreads();
+        initPartialsCache();
 
 
         hasDirt = Tree.IS_FILTHY;
 
-        for (int i = 0; i < treeInput.get().getLeafNodeCount(); i++) {
-            initLeafAncestors(i);
+        for (int b = 0; b < barcodeCount; b++) {
+            for (int i = 0; i < treeInput.get().getLeafNodeCount(); i++) {
+                initLeafAncestors(b, i);
+            }
+        }
+        initLikelihoodCore();
+        for (int b = 0; b < barcodeCount; b++) {
+            for (int i = 0; i < treeInput.get().getLeafNodeCount(); i++) {
+                likelihoodCore.setLeafData(b, i);
+            }
+        }
+
+    }
+
+    /**
+     * Set up the core of the core input, run side by side with the reference core if crossCheckCore is true
+     */
+    protected void initLikelihoodCore() {
+
+        if (coreInput.get() == Core.contiguous) {
+            if (useLogSpace || useFloatPartials || useOffHeapPartials || partialsCache != null) {
+                throw new IllegalArgumentException(String.format(
+                        "Invalid core input: the contiguous core keeps double precision partials on the heap, " +
+                                "useLogSpace, useFloatPartials and useOffHeapPartials cannot be true and partialsCacheSize must be 0"));
+            }
+            likelihoodCore = new ContiguousSciPhyLikelihoodCore();
+        } else {
+            likelihoodCore = new ReferenceSciPhyLikelihoodCore();
+        }
+        if (crossCheckCoreInput.get()) {
+            if (coreInput.get() == Core.reference) {
+                throw new IllegalArgumentException(String.format(
+                        "Invalid core input: crossCheckCore runs core side by side with the reference core, core cannot be reference"));
+            }
+            likelihoodCore = new CrossCheckSciPhyLikelihoodCore(likelihoodCore, new ReferenceSciPhyLikelihoodCore());
+        }
+        likelihoodCore.initialize(this);
+    }
+
+    /**
+     * Set up the workers evaluating the site categories if more than one thread is used. The calling thread evaluates
+     * the first category, and the first failure of a worker, exception or error, is rethrown on the calling thread.
+     */
+    protected void initCategoryThreads() {
+
+        if (categoryExecutor != null) {
+            categoryExecutor.shutdown();
+            categoryExecutor = null;
         }
 
+        categoryThreadCount = Math.max(1, Math.min(categoryThreadsInput.get(), m_siteModel.getCategoryCount()));
+        if (categoryThreadCount == 1) {
+            return;
+        }
+
+        categoryExceptions = new Throwable[m_siteModel.getCategoryCount()];
+        categoryWorkers = new Runnable[categoryThreadCount];
+        for (int t = 0; t < categoryThreadCount; t++) {
+            final int firstCategory = t;
+            categoryWorkers[t] = () -> {
+                try {
+                    for (int i = firstCategory; i < m_siteModel.getCategoryCount(); i += categoryThreadCount) {
+                        try {
+                            calculateCategoryLogLikelihoods(i);
+                        } catch (Throwable e) {
+                            categoryExceptions[i] = e;
+                        }
+                    }
+                } finally {
+                    categoryCountDown.countDown();
+                }
+            };
+        }
+        categoryExecutor = WorkerThreads.newPool(categoryThreadCount - 1, "SciPhyTreeLikelihood category worker");
+    }
+
+    /**
+     * Set up the pool evaluating the subtrees if more than one thread is used. Each task computes the partials of its
+     * own nodes, on the heap, so this is not combined with the buffers of the float and off heap partials nor with
+     * the category threads.
+     */
+    protected void initSubtreeThreads() {
+
+        if (subtreePool != null) {
+            subtreePool.shutdown();
+            subtreePool = null;
+        }
+
+        subtreeTaskSize = Math.max(1, subtreeTaskSizeInput.get());
+        updateSubtreeSizes = new int[nodeCount];
+        if (subtreeThreadsInput.get() <= 1) {
+            return;
+        }
+        if (categoryThreadCount > 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid thread inputs: categoryThreads and subtreeThreads cannot both be more than 1"));
+        }
+        if (useFloatPartials || useOffHeapPartials) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid thread inputs: subtrees are evaluated in parallel on double precision partials on the heap, " +
+                            "useFloatPartials and useOffHeapPartials cannot be true"));
+        }
+        subtreePool = new ForkJoinPool(subtreeThreadsInput.get());
+    }
+
+    /**
+     * Set up the cache of the subtree partials if partialsCacheSize is positive. The hashes of a leaf only depend on
+     * its number.
+     */
+    protected void initPartialsCache() {
+
+        partialsCacheSize = partialsCacheSizeInput.get();
+        if (partialsCacheSize <= 0) {
+            return;
+        }
+        if (useFloatPartials) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid cache input: the partials cache only holds double precision partials, useFloatPartials cannot be true"));
+        }
+        partialsCache = new LinkedHashMap<Long, CachedPartials>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedPartials> eldest) {
+                if (size() > partialsCacheSize) {
+                    evictedPartials = eldest.getValue();
+                    return true;
+                }
+                return false;
+            }
+        };
+        subtreeHashes = new long[nodeCount];
+        storedSubtreeHashes = new long[nodeCount];
+        subtreeChecks = new long[nodeCount];
+        storedSubtreeChecks = new long[nodeCount];
         for (int i = 0; i < treeInput.get().getLeafNodeCount(); i++) {
-            initLeafPartials(i);
+            subtreeHashes[i] = mix(i + 1);
+            subtreeChecks[i] = mix(~i);
         }
+    }
+
+    /**
+     * @return the finalizer of the SplitMix64 generator, a bijection of the 64 bit values which spreads every bit of
+     * value over the whole result
+     */
+    protected static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
 
+    protected static long combineHash(long hash, long value) {
+        return mix(hash * 31 + value);
+    }
+
+    /**
+     * Hash the edit probabilities and the category rates, on which all partials depend.
+     */
+    protected void updateParameterHashes() {
+
+        parameterHash = 17;
+        parameterCheck = 19;
+        for (double editProbability : substitutionModel.getInsertProbabilities()) {
+            parameterHash = combineHash(parameterHash, Double.doubleToLongBits(editProbability));
+            parameterCheck = combineHash(parameterCheck, ~Double.doubleToLongBits(editProbability));
+        }
+        for (double categoryRate : categoryRates) {
+            parameterHash = combineHash(parameterHash, Double.doubleToLongBits(categoryRate));
+            parameterCheck = combineHash(parameterCheck, ~Double.doubleToLongBits(categoryRate));
+        }
+    }
+
+    /**
+     * Update the hashes of the subtree below node from those of its children and of their branch lengths times rates.
+     * The children are ordered, as the states of a node keep the reference barcode of its first child.
+     */
+    protected void updateSubtreeHashes(int nodeNr, int child1Nr, int child2Nr) {
+
+        long hash = combineHash(subtreeHashes[child1Nr], Double.doubleToLongBits(m_branchLengths[child1Nr]));
+        subtreeHashes[nodeNr] = combineHash(hash, combineHash(subtreeHashes[child2Nr], Double.doubleToLongBits(m_branchLengths[child2Nr])));
+        long check = combineHash(subtreeChecks[child2Nr], ~Double.doubleToLongBits(m_branchLengths[child2Nr]));
+        subtreeChecks[nodeNr] = combineHash(check, combineHash(subtreeChecks[child1Nr], ~Double.doubleToLongBits(m_branchLengths[child1Nr])));
+    }
+
+    /**
+     * Look up the partials of the subtree below node nodeNr in the cache and copy them to the current partials of the
+     * node, whose states have to be up to date.
+     *
+     * @return whether the partials were found
+     */
+    protected boolean restoreCachedPartials(int nodeNr) {
+
+        final CachedPartials cached = partialsCache.get(combineHash(subtreeHashes[nodeNr], parameterHash));
+        if (cached == null || cached.check != combineHash(subtreeChecks[nodeNr], parameterCheck)) {
+            partialsCacheMissCount++;
+            return false;
+        }
+        for (int b = 0; b < barcodeCount; b++) {
+            if (cached.prefixLengths[b] != ancestralPrefixLengths[b][currentStatesIndex[nodeNr]][nodeNr]) {
+                partialsCacheMissCount++;
+                return false;
+            }
+        }
+        partialsCacheHitCount++;
+        for (int b : editedBarcodes) {
+            final int length = cached.prefixLengths[b] + 1;
+            for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
+                if (useOffHeapPartials) {
+                    setPartials(b, i, nodeNr, cached.partials[b][i], length);
+                } else {
+                    System.arraycopy(cached.partials[b][i], 0, getPartialsForUpdate(b, i, nodeNr), 0, length);
+                }
+                if (useScaling) {
+                    scalingExponents.setExponent(b, i, currentPartialsIndex[nodeNr], nodeNr, cached.scalingExponents[b][i]);
+                }
+            }
+        }
+        if (useScaling) {
+            for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
+                updateScalingExponentSums(nodeNr, i);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy the partials calculated at the updated nodes to the cache, reusing the arrays of the evicted entry if any.
+     */
+    protected void cacheUpdatedPartials() {
+
+        final int categoryCount = m_siteModel.getCategoryCount();
+        for (int k = 0; k < updateCount; k++) {
+            final int nodeNr = updateNodes[k];
+            CachedPartials cached = evictedPartials;
+            evictedPartials = null;
+            if (cached == null) {
+                cached = new CachedPartials();
+                cached.prefixLengths = new int[barcodeCount];
+                cached.partials = new double[barcodeCount][categoryCount][];
+                for (int b = 0; b < barcodeCount; b++) {
+                    for (int i = 0; i < categoryCount; i++) {
+                        cached.partials[b][i] = new double[arrayLengths[b] + 1];
+                    }
+                }
+                cached.scalingExponents = new int[barcodeCount][categoryCount];
+            }
+            cached.check = combineHash(subtreeChecks[nodeNr], parameterCheck);
+            for (int b = 0; b < barcodeCount; b++) {
+                cached.prefixLengths[b] = ancestralPrefixLengths[b][currentStatesIndex[nodeNr]][nodeNr];
+            }
+            for (int b : editedBarcodes) {
+                for (int i = 0; i < categoryCount; i++) {
+                    System.arraycopy(getPartials(b, i, nodeNr), 0, cached.partials[b][i], 0, cached.prefixLengths[b] + 1);
+                    if (useScaling) {
+                        cached.scalingExponents[b][i] = scalingExponents.getExponent(b, i, currentPartialsIndex[nodeNr], nodeNr);
+                    }
+                }
+            }
+            partialsCache.put(combineHash(subtreeHashes[nodeNr], parameterHash), cached);
+        }
+    }
+
+    /**
+     * @return the number of updated nodes whose partials were found in the cache, and the number of those that were not
+     */
+    public long getPartialsCacheHitCount() {
+        return partialsCacheHitCount;
+    }
+
+    public long getPartialsCacheMissCount() {
+        return partialsCacheMissCount;
+    }
+
+    /**
+     * Allocate the off heap buffers of the partials, one per barcode holding 2 buffers x nodeCount x categoryCount x
+     * (arrayLength + 1) states. Direct buffers are indexed by int, so the partials of a barcode are limited to 2^31 - 1 bytes.
+     */
+    protected void initOffHeapPartials() {
+
+        final int categoryCount = m_siteModel.getCategoryCount();
+        offHeapPartials = new DoubleBuffer[barcodeCount];
+        for (int b = 0; b < barcodeCount; b++) {
+            long size = 2L * nodeCount * categoryCount * (arrayLengths[b] + 1) * Double.BYTES;
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(String.format(
+                        "Invalid storage input: the partials of a barcode need %d bytes, more than an off heap buffer can hold", size));
+            }
+            offHeapPartials[b] = ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        }
+        partialsBuffers = new double[categoryCount][arrayLength + 1];
+        childPartialsBuffers = new double[categoryCount][2][arrayLength + 1];
+    }
+
+    /**
+     * @return the index of the first partial of node nodeNr in the off heap buffer of barcode
+     */
+    protected int getOffHeapOffset(int barcode, int categoryId, int bufferIndex, int nodeNr) {
+        return ((bufferIndex * nodeCount + nodeNr) * m_siteModel.getCategoryCount() + categoryId) * (arrayLengths[barcode] + 1);
+    }
+
+    /**
+     * @return the current partials of node nodeNr. With off heap storage they are copied to the first child partials
+     * buffer of the category, which only holds them until the next call for the same category.
+     */
+    protected double[] getPartials(int barcode, int categoryId, int nodeNr) {
+        return getPartials(barcode, categoryId, nodeNr, 0);
+    }
+
+    /**
+     * @return the current partials of node nodeNr. With off heap storage they are copied to the child partials
+     * buffer childIndex of the category, so that the partials of both children of a node can be read at once.
+     */
+    protected double[] getPartials(int barcode, int categoryId, int nodeNr, int childIndex) {
+
+        if (!useOffHeapPartials) {
+            return partialLikelihoods[barcode][categoryId][currentPartialsIndex[nodeNr]][nodeNr];
+        }
+        final double[] partials = childPartialsBuffers[categoryId][childIndex];
+        offHeapPartials[barcode].get(getOffHeapOffset(barcode, categoryId, currentPartialsIndex[nodeNr], nodeNr), partials,
+                0, ancestralPrefixLengths[barcode][currentStatesIndex[nodeNr]][nodeNr] + 1);
+        return partials;
+    }
+
+    /**
+     * @return the alignments of the target barcodes, here the single alignment of the data input
+     */
+    protected List<Alignment> getAlignments() {
+        return Collections.singletonList(dataInput.get());
     }
 
     public SubstitutionModel getSubstitutionModel() {
@@ -163,28 +802,290 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
     public double calculateLogP() {
         final TreeInterface tree = treeInput.get();
 
+        // the origin may be estimated: the stem tables are refreshed when its length changes
+        if (originTimeInput.get() != null) {
+            originTime = originTimeInput.get().getArrayValue();
+        }
         if(originTime != 0.0) {
             if (tree.getRoot().getHeight() >= originTime) {
-                return Double.NEGATIVE_INFINITY;
+                // no barcode can be observed on a tree older than the experiment
+                Arrays.fill(barcodeLogLikelihoods, Double.NEGATIVE_INFINITY);
+                rejectedCalculationCount++;
+                logP = Double.NEGATIVE_INFINITY;
+                return logP;
+            }
+        }
+
+        updateInsertFactors();
+
+        // no need to visit the tree, nor to evaluate the other barcodes, which are marked as not evaluated
+        if (originTime != 0.0 && hasInfeasibleBarcode) {
+            for (int b = 0; b < barcodeCount; b++) {
+                barcodeLogLikelihoods[b] = infeasibleBarcodes[b] ? Double.NEGATIVE_INFINITY : Double.NaN;
+            }
+            rejectedCalculationCount++;
+            logP = Double.NEGATIVE_INFINITY;
+            return logP;
+        }
+
+        fullCalculationCount++;
+        for (int i = 0; i < categoryRates.length; i++) {
+            categoryRates[i] = m_siteModel.getRateForCategory(i, tree.getRoot());
+        }
+        if (partialsCache != null) {
+            updateParameterHashes();
+        }
+        updateTreeSnapshot();
+        updateCount = 0;
+        traverse();
+
+        if (subtreePool != null) {
+            calculateSubtreesInParallel();
+        } else if (categoryThreadCount == 1) {
+            calculateAllCategoryLogLikelihoods();
+        } else {
+            calculateCategoryLogLikelihoodsInParallel();
+        }
+        if (partialsCache != null) {
+            cacheUpdatedPartials();
+        }
+        if (uneditedBarcodes.length > 0) {
+            calculateUneditedLogLikelihoods();
+        }
+
+        logP = 0.0;
+        for (int b = 0; b < barcodeCount; b++) {
+            barcodeLogLikelihoods[b] = logSum(categoryLogLikelihoods[b], categoryLogLikelihoods[b].length) - Math.log(m_siteModel.getCategoryCount());
+            logP += barcodeLogLikelihoods[b];
+        }
+        return logP;
+    }
+
+    /**
+     * This function calculates the partials of all categories at the nodes that need to be updated, visiting each node
+     * once: the branch rates of both child branches are looked up once and only the Poisson tables, which depend on the
+     * category rate, are updated per category. Each category is computed exactly as in calculateCategoryLogLikelihoods.
+     */
+    protected void calculateAllCategoryLogLikelihoods() {
+
+        final int categoryCount = m_siteModel.getCategoryCount();
+
+        for (int k = 0; k < updateCount; k++) {
+            final int nodeNr = updateNodes[k];
+            updateBranchProbabilities(leftChildren[nodeNr]);
+            updateBranchProbabilities(rightChildren[nodeNr]);
+            calculateAllCategoryPartials(nodeNr);
+        }
+
+        if (originTime != 0.0) {
+            updateBranchProbabilities(rootNr);
+        }
+        for (int i = 0; i < categoryCount; i++) {
+            updateScalingExponentSums(i);
+            likelihoodCore.calculateRootLogLikelihoods(rootNr, i, categoryLogLikelihoods);
+        }
+    }
+
+    /**
+     * This function calculates the partials of all categories at node nodeNr, given Poisson probabilities of both child
+     * branches that are up to date.
+     */
+    protected void calculateAllCategoryPartials(int nodeNr) {
+
+        for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
+            likelihoodCore.calculatePartials(nodeNr, leftChildren[nodeNr], rightChildren[nodeNr], i);
+        }
+    }
+
+    /**
+     * Same as calculateAllCategoryLogLikelihoods, with the partials of independent subtrees calculated in parallel.
+     * The Poisson tables are updated before, as they share one distribution per category.
+     */
+    protected void calculateSubtreesInParallel() {
+
+        for (int k = 0; k < updateCount; k++) {
+            updateBranchProbabilities(leftChildren[updateNodes[k]]);
+            updateBranchProbabilities(rightChildren[updateNodes[k]]);
+        }
+        if (updateCount > 0) {
+            subtreePool.invoke(new SubtreeTask(rootNr, 0));
+        }
+
+        if (originTime != 0.0) {
+            updateBranchProbabilities(rootNr);
+        }
+        for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
+            updateScalingExponentSums(i);
+            likelihoodCore.calculateRootLogLikelihoods(rootNr, i, categoryLogLikelihoods);
+        }
+    }
+
+    /**
+     * Calculates the partials of the nodes to update in the subtree of node nodeNr, which start at index first of
+     * updateNodes. Both child subtrees are forked if the subtree has at least subtreeTaskSize nodes to update, the node
+     * itself is calculated after them.
+     */
+    protected class SubtreeTask extends RecursiveAction {
+
+        final int nodeNr;
+        final int first;
+
+        SubtreeTask(int nodeNr, int first) {
+            this.nodeNr = nodeNr;
+            this.first = first;
+        }
+
+        @Override
+        protected void compute() {
+
+            final int size = updateSubtreeSizes[nodeNr];
+            if (size < subtreeTaskSize) {
+                for (int k = first; k < first + size; k++) {
+                    calculateAllCategoryPartials(updateNodes[k]);
+                }
+                return;
+            }
+
+            final int child1Nr = leftChildren[nodeNr];
+            final int child2Nr = rightChildren[nodeNr];
+            final int childSize = updateSubtreeSizes[child1Nr] + updateSubtreeSizes[child2Nr];
+            invokeAll(new SubtreeTask(child1Nr, first), new SubtreeTask(child2Nr, first + updateSubtreeSizes[child1Nr]));
+            // the node is not updated if its partials were found in the cache
+            if (childSize < size) {
+                calculateAllCategoryPartials(nodeNr);
             }
         }
+    }
+
+    /**
+     * This function calculates the partials of category categoryId at the nodes that need to be updated, and the
+     * log likelihood of each barcode for that category. It only touches the buffers of that category.
+     */
+    protected void calculateCategoryLogLikelihoods(int categoryId) {
+
+        for (int k = 0; k < updateCount; k++) {
+            final int nodeNr = updateNodes[k];
+            updateBranchProbabilities(leftChildren[nodeNr], categoryId);
+            updateBranchProbabilities(rightChildren[nodeNr], categoryId);
+            likelihoodCore.calculatePartials(nodeNr, leftChildren[nodeNr], rightChildren[nodeNr], categoryId);
+        }
+
+        if (originTime != 0.0) {
+            updateBranchProbabilities(rootNr, categoryId);
+        }
+        updateScalingExponentSums(categoryId);
+        likelihoodCore.calculateRootLogLikelihoods(rootNr, categoryId, categoryLogLikelihoods);
+    }
+
+    /**
+     * This function sets the log likelihood of the unedited barcodes for all categories: with no edit on any branch,
+     * it is -categoryRate times the sum of the branch lengths times rates, including the stem with an origin.
+     * The sum over the branches is totalBranchTime, kept up to date by traverse, so this does not visit the tree.
+     */
+    protected void calculateUneditedLogLikelihoods() {
 
+        double branchTime = totalBranchTime;
+        if (originTime != 0.0) {
+            branchTime += getBranchTime(rootNr) * branchRates[rootNr];
+        }
         for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
-            //adjust clock rate for the given category
-            traverse(tree.getRoot(), i);
+            final double logLikelihood = -categoryRates[i] * branchTime;
+            for (int b : uneditedBarcodes) {
+                categoryLogLikelihoods[b][i] = logLikelihood;
+            }
+        }
+    }
 
-            if (originTime == 0.0) {
+    /**
+     * This function sets the log likelihood of each edited barcode for category categoryId from the partials at the root,
+     * in logLikelihoods[barcode][categoryId]. With an origin, the Poisson probabilities of the stem have to be up to date.
+     */
+    protected void calculateRootLogLikelihoods(int rootNr, int categoryId, double[][] logLikelihoods) {
+
+        for (int b : editedBarcodes) {
+            if (useLogSpace) {
+                //the partials are logs, and need no scaling
+                final double[] rootPartials = getPartials(b, categoryId, rootNr);
+                logLikelihoods[b][categoryId] = originTime == 0.0 ? logSumExp(rootPartials, ancestralPrefixLengths[b][currentStatesIndex[rootNr]][rootNr] + 1) : calculateLogPartialLikelihoodState(b, 0, rootNr, categoryId);
+            } else if (useFloatPartials && originTime == 0.0) {
+                //sum of all partial likelihoods at the root, in double
+                final float[] rootPartials = floatPartialLikelihoods[b][categoryId][currentPartialsIndex[rootNr]][rootNr];
+                double rootPartialsSum = 0.0;
+                for (int k = 0; k <= ancestralPrefixLengths[b][currentStatesIndex[rootNr]][rootNr]; k++) {
+                    rootPartialsSum += rootPartials[k];
+                }
+                logLikelihoods[b][categoryId] = Math.log(rootPartialsSum) + getLogScalingFactor(b, categoryId);
+            } else if (originTime == 0.0) {
                 //sum of all partial likelihoods at the root
-                int rootNr = tree.getRoot().getNr();
-                categoryLogLikelihoods[i] = Math.log(Arrays.stream(partialLikelihoods[currentPartialsIndex[rootNr]][rootNr]).sum()) + getLogScalingFactor();
+                final double[] rootPartials = getPartials(b, categoryId, rootNr);
+                double rootPartialsSum = 0.0;
+                for (int k = 0; k <= ancestralPrefixLengths[b][currentStatesIndex[rootNr]][rootNr]; k++) {
+                    rootPartialsSum += rootPartials[k];
+                }
+                logLikelihoods[b][categoryId] = Math.log(rootPartialsSum) + getLogScalingFactor(b, categoryId);
             } else {
                 //the tree log likelihood is the log(p) of unedited state at the origin
-                categoryLogLikelihoods[i] = Math.log(calculateOriginPartial(tree.getRoot(), i)) + getLogScalingFactor();
+                logLikelihoods[b][categoryId] = Math.log(calculateOriginPartial(b, rootNr, categoryId)) + getLogScalingFactor(b, categoryId);
+            }
+        }
+    }
+
+    /**
+     * Evaluate the categories on the category workers, each worker taking every categoryThreadCount-th category.
+     * Each category is computed exactly as in the sequential case, so the combined likelihood is the same.
+     */
+    protected void calculateCategoryLogLikelihoodsInParallel() {
 
+        categoryCountDown = new CountDownLatch(categoryThreadCount);
+        for (int t = 1; t < categoryThreadCount; t++) {
+            categoryExecutor.execute(categoryWorkers[t]);
+        }
+        categoryWorkers[0].run();
+        try {
+            categoryCountDown.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the site categories", e);
+        }
+
+        for (int i = 0; i < categoryExceptions.length; i++) {
+            if (categoryExceptions[i] != null) {
+                Throwable e = categoryExceptions[i];
+                Arrays.fill(categoryExceptions, null);
+                WorkerThreads.rethrow(e);
             }
         }
-        logP = logSum(categoryLogLikelihoods, categoryLogLikelihoods.length) - Math.log(m_siteModel.getCategoryCount());
-        return logP;
+    }
+
+    /**
+     * @return the number of internal nodes whose partials were recalculated by the last calculation, in every category.
+     * After a change on a single branch, this is the number of nodes on the path from the branch to the root.
+     */
+    public int getUpdatedNodeCount() {
+        return updateCount;
+    }
+
+    /**
+     * @return the number of calculations that returned -Infinity without calculating any partial, because the root is
+     * above the origin or a barcode has an edit of probability 0
+     */
+    public long getRejectedCalculationCount() {
+        return rejectedCalculationCount;
+    }
+
+    /**
+     * @return the number of calculations that traversed the tree
+     */
+    public long getFullCalculationCount() {
+        return fullCalculationCount;
+    }
+
+    /**
+     * @return the log likelihood of the alignment of barcode, as of the last calculation. If that calculation was
+     * rejected because of a barcode of likelihood 0, the barcodes that were not evaluated are NaN.
+     */
+    public double getBarcodeLogP(int barcode) {
+        return barcodeLogLikelihoods[barcode];
     }
 
     /**
@@ -192,9 +1093,9 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
      * Yang (2000) J. Mol. Evol. 51: 423-432
      * <p/>
      * This function looks over the partial likelihoods for each state at each pattern
-     * and finds the largest. If this is less than the scalingThreshold (currently set
-     * to 1E-40) then it rescales the partials for that pattern by dividing by this number
-     * (i.e., normalizing to between 0, 1). It then stores the log of this scaling.
+     * and finds the largest. If this is less than ScalingExponents.SCALING_THRESHOLD (currently set
+     * to 1E-100) then it rescales the partials for that pattern by the power of 2 of this number
+     * (i.e., normalizing to between 0, 2). It then stores the exponent of this scaling.
      * This is called for every internal node after the partials are calculated so provides
      * most of the performance hit. Ziheng suggests only doing this on a proportion of nodes
      * but this sounded like a headache to organize (and he doesn't use the threshold idea
@@ -202,127 +1103,350 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
      *
      * @param nodeNumber
      */
-    protected void scalePartials(int nodeNumber) {
+    protected void scalePartials(int barcode, int categoryId, int nodeNumber) {
 
-        double scaleFactor = 0.0;
+        double[] partials = getPartials(barcode, categoryId, nodeNumber);
+        int length = ancestralPrefixLengths[barcode][currentStatesIndex[nodeNumber]][nodeNumber] + 1;
 
-        //find the highest partial likelihood
-        //is node number same as nodeIndex
-        for (int k = 0; k < partialLikelihoods[currentPartialsIndex[nodeNumber]][nodeNumber].length; k++) {
+        //scale the partials if the highest one is smaller than the threshold, and save the exponent of the scaling factor
+        final int exponent = scalingExponents.scale(partials, 0, length, barcode, categoryId, currentPartialsIndex[nodeNumber], nodeNumber);
+        if (exponent != 0 && useOffHeapPartials) {
+            offHeapPartials[barcode].put(getOffHeapOffset(barcode, categoryId, currentPartialsIndex[nodeNumber], nodeNumber), partials, 0, length);
+        }
+    }
 
-            if (partialLikelihoods[currentPartialsIndex[nodeNumber]][nodeNumber][k] > scaleFactor) {
-                scaleFactor = partialLikelihoods[currentPartialsIndex[nodeNumber]][nodeNumber][k];
+    /**
+     * Read the barcodes observed at the leaves and store each of them together with its ordered list of edits.
+     * Leaves are matched to the sequences of each alignment by taxon name, or by node number for unnamed leaves.
+     */
+    protected void initLeafBarcodes() {
+
+        int leafCount = treeInput.get().getLeafNodeCount();
+        leafBarcodes = new int[barcodeCount][leafCount][];
+        leafEdits = new int[barcodeCount][leafCount][];
+        insertFactors = new double[barcodeCount][leafCount][][];
+        logInsertFactors = useLogSpace ? new double[barcodeCount][leafCount][][] : null;
+        logInsertPrefixProducts = new double[barcodeCount][leafCount][];
+        distinctBarcodeLeaves = new int[barcodeCount][];
+        infeasibleBarcodes = new boolean[barcodeCount];
+
+        for (int b = 0; b < barcodeCount; b++) {
+            Alignment alignment = alignments.get(b);
+            for (int i = 0; i < leafCount; i++) {
+                String leafId = treeInput.get().getNode(i).getID();
+                int taxonIndex = alignment.getTaxonIndex(leafId);
+                if (taxonIndex < 0) {
+                    throw new IllegalArgumentException(String.format(
+                            "Invalid data input: leaf %s of the tree has no sequence in alignment %s", leafId, alignment.getID()));
+                }
+                List<Integer> sequence = alignment.getCounts().get(taxonIndex);
+                leafBarcodes[b][i] = new int[sequence.size()];
+                int editCount = 0;
+                for (int site = 0; site < sequence.size(); site++) {
+                    leafBarcodes[b][i][site] = sequence.get(site);
+                    if (leafBarcodes[b][i][site] != 0) {
+                        editCount++;
+                    }
+                }
+                leafEdits[b][i] = new int[editCount];
+                editCount = 0;
+                for (int site = 0; site < sequence.size(); site++) {
+                    if (leafBarcodes[b][i][site] != 0) {
+                        leafEdits[b][i][editCount++] = leafBarcodes[b][i][site];
+                    }
+                }
             }
 
+            Map<List<Integer>, Integer> firstLeafWithEdits = new LinkedHashMap<>();
+            for (int i = 0; i < leafCount; i++) {
+                List<Integer> edits = Arrays.stream(leafEdits[b][i]).boxed().collect(Collectors.toList());
+                Integer firstLeaf = firstLeafWithEdits.putIfAbsent(edits, i);
+                if (firstLeaf != null) {
+                    insertFactors[b][i] = insertFactors[b][firstLeaf];
+                    if (useLogSpace) {
+                        logInsertFactors[b][i] = logInsertFactors[b][firstLeaf];
+                    }
+                    logInsertPrefixProducts[b][i] = logInsertPrefixProducts[b][firstLeaf];
+                    continue;
+                }
+                insertFactors[b][i] = new double[leafEdits[b][i].length + 1][];
+                for (int from = 0; from <= leafEdits[b][i].length; from++) {
+                    insertFactors[b][i][from] = new double[leafEdits[b][i].length - from + 1];
+                }
+                logInsertPrefixProducts[b][i] = new double[leafEdits[b][i].length + 1];
+                if (useLogSpace) {
+                    logInsertFactors[b][i] = new double[leafEdits[b][i].length + 1][];
+                    for (int from = 0; from <= leafEdits[b][i].length; from++) {
+                        logInsertFactors[b][i][from] = new double[leafEdits[b][i].length - from + 1];
+                    }
+                }
+            }
+            distinctBarcodeLeaves[b] = firstLeafWithEdits.values().stream().mapToInt(Integer::intValue).toArray();
         }
-        //if this partial is smaller than the threshold, scale the partials
-        if (scaleFactor < scalingThreshold) {
 
-            for (int k = 0; k < partialLikelihoods[currentPartialsIndex[nodeNumber]][nodeNumber].length; k++) {
-                partialLikelihoods[currentPartialsIndex[nodeNumber]][nodeNumber][k] /= scaleFactor;
+        List<Integer> edited = new ArrayList<>();
+        List<Integer> unedited = new ArrayList<>();
+        for (int b = 0; b < barcodeCount; b++) {
+            if (distinctBarcodeLeaves[b].length == 1 && leafEdits[b][distinctBarcodeLeaves[b][0]].length == 0) {
+                unedited.add(b);
+            } else {
+                edited.add(b);
             }
-            // save the log(scaling factors)
-            scalingFactors[currentPartialsIndex[nodeNumber]][nodeNumber] = Math.log(scaleFactor);
-
-        } else {
-            scalingFactors[currentPartialsIndex[nodeNumber]][nodeNumber] = 0.0;
         }
-
+        editedBarcodes = edited.stream().mapToInt(Integer::intValue).toArray();
+        uneditedBarcodes = unedited.stream().mapToInt(Integer::intValue).toArray();
     }
 
     /**
-     * Calculate partial likelihoods for a given leaf node, and fill the corresponding partialLikelihood array
+     * Recompute the insert factor tables of the leaf barcodes if the edit probabilities changed since they were last
+     * computed, and find the barcodes with an edit of probability 0.
      */
-    protected void initLeafPartials(int nodeNr) {
-
-        double[] leafPartialLikelihoods = initPartialLikelihoodsLeaf(ancestralStates.get(makeCachingIndexStates(nodeNr)).size());
-        this.partialLikelihoods[0][nodeNr] = new double[leafPartialLikelihoods.length];
-        this.partialLikelihoods[1][nodeNr] = new double[leafPartialLikelihoods.length];
-        System.arraycopy(leafPartialLikelihoods, 0, this.partialLikelihoods[0][nodeNr], 0, leafPartialLikelihoods.length);
+    protected void updateInsertFactors() {
 
+        double[] editProbabilities = substitutionModel.getInsertProbabilities();
+        if (Arrays.equals(editProbabilities, insertFactorsEditProbabilities)) {
+            return;
+        }
+        hasInfeasibleBarcode = false;
+        for (int b = 0; b < barcodeCount; b++) {
+            infeasibleBarcodes[b] = false;
+            for (int i : distinctBarcodeLeaves[b]) {
+                substitutionModel.getInsertFactors(leafEdits[b][i], insertFactors[b][i], logInsertPrefixProducts[b][i]);
+                if (useLogSpace) {
+                    substitutionModel.getLogInsertFactors(leafEdits[b][i], logInsertFactors[b][i]);
+                }
+                // the log of the product does not underflow, so this is 0 only for an edit of probability 0
+                if (logInsertPrefixProducts[b][i][leafEdits[b][i].length] == Double.NEGATIVE_INFINITY) {
+                    infeasibleBarcodes[b] = true;
+                }
+            }
+            hasInfeasibleBarcode |= infeasibleBarcodes[b];
+        }
+        insertFactorsEditProbabilities = editProbabilities.clone();
     }
 
-
-    public int makeCachingIndexStates(int nodeIndex) {
-        int node = nodeIndex + 1;
-        String forHashing = node + "" +  currentStatesIndex[nodeIndex] + ""+ node;
-        return forHashing.hashCode();
+    /**
+     * Calculate partial likelihoods for a given leaf node, and fill the corresponding partialLikelihood array
+     */
+    protected void initLeafPartials(int barcode, int nodeNr) {
+
+        double[] leafPartialLikelihoods = initPartialLikelihoodsLeaf(ancestralPrefixLengths[barcode][currentStatesIndex[nodeNr]][nodeNr] + 1);
+        if (useFloatPartials) {
+            for (float[][][] categoryPartials : floatPartialLikelihoods[barcode]) {
+                categoryPartials[0][nodeNr] = new float[leafPartialLikelihoods.length];
+                categoryPartials[1][nodeNr] = new float[leafPartialLikelihoods.length];
+                for (int i = 0; i < leafPartialLikelihoods.length; i++) {
+                    categoryPartials[0][nodeNr][i] = (float) leafPartialLikelihoods[i];
+                }
+            }
+            return;
+        }
+        if (useLogSpace) {
+            for (int i = 0; i < leafPartialLikelihoods.length; i++) {
+                leafPartialLikelihoods[i] = Math.log(leafPartialLikelihoods[i]);
+            }
+        }
+        if (useOffHeapPartials) {
+            for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
+                offHeapPartials[barcode].put(getOffHeapOffset(barcode, i, 0, nodeNr), leafPartialLikelihoods, 0, leafPartialLikelihoods.length);
+            }
+            return;
+        }
+        for (double[][][] categoryPartials : this.partialLikelihoods[barcode]) {
+            categoryPartials[0][nodeNr] = new double[leafPartialLikelihoods.length];
+            categoryPartials[1][nodeNr] = new double[leafPartialLikelihoods.length];
+            System.arraycopy(leafPartialLikelihoods, 0, categoryPartials[0][nodeNr], 0, leafPartialLikelihoods.length);
+        }
 
     }
 
 
     /**
-     * Calculate the set of ancestral states for a given leaf node, and fill the corresponding AncestralStates hashmap
+     * Calculate the set of ancestral states for a given leaf node, and fill the corresponding ancestral states arrays.
+     * A leaf can be in any state obtained by removing edits from its observed barcode, i.e. any prefix of its edits.
      */
-    protected void initLeafAncestors(int nodeNr) {
+    protected void initLeafAncestors(int barcode, int nodeNr) {
 
-        List<List<Integer>> possibleLeafAncestors = getPossibleAncestors(dataInput.get().getCounts().get(nodeNr));
-        ancestralStates.put(makeCachingIndexStates(nodeNr), possibleLeafAncestors);
+        for (int i = 0; i < 2; i++) {
+            ancestralReferences[barcode][i][nodeNr] = nodeNr;
+            ancestralPrefixLengths[barcode][i][nodeNr] = leafEdits[barcode][nodeNr].length;
+        }
 
     }
 
 
     /**
-     * This implements a postorder traversal of the tree to fill the ancestralStates hashmap and corresponding partialLikelihood array.
+     * Refresh the flat snapshot of the tree: the heights of the dirty nodes, and the children of the filthy nodes. The
+     * post order is rebuilt if a child or the root changed.
+     * The tree keeps no list of its dirty nodes, so their flags are read in one pass, as traverse and
+     * Tree.somethingIsDirty also do at each calculation. Nothing else is read from a clean node.
      */
-    protected int traverse(Node node, int categoryId) {
+    protected void updateTreeSnapshot() {
 
-        int update = (node.isDirty() | hasDirt);
-        int nodeIndex = node.getNr();
-
-        final double branchRate = branchRateModel.getRateForBranch(node);
-        final double branchTime = node.getLength() * branchRate;
+        final TreeInterface tree = treeInput.get();
+        boolean topologyChanged = tree.getRoot().getNr() != rootNr;
+        for (Node node : tree.getNodesAsArray()) {
+            final int dirt = node.isDirty() | hasDirt;
+            if (dirt == Tree.IS_CLEAN && rootNr >= 0) {
+                continue;
+            }
+            final int nodeNr = node.getNr();
+            nodeHeights[nodeNr] = node.getHeight();
+            if (!node.isLeaf() && (dirt == Tree.IS_FILTHY || leftChildren[nodeNr] < 0)) {
+                final int child1Nr = node.getLeft().getNr();
+                final int child2Nr = node.getRight().getNr();
+                if (child1Nr != leftChildren[nodeNr] || child2Nr != rightChildren[nodeNr]) {
+                    leftChildren[nodeNr] = child1Nr;
+                    rightChildren[nodeNr] = child2Nr;
+                    topologyChanged = true;
+                }
+            }
+        }
+        if (!topologyChanged) {
+            return;
+        }
 
-        if (!node.isRoot() && (update != Tree.IS_CLEAN || branchTime != m_branchLengths[nodeIndex])) {
-            m_branchLengths[nodeIndex] = branchTime;
-            update |= Tree.IS_DIRTY;
+        rootNr = tree.getRoot().getNr();
+        parents[rootNr] = -1;
+        // iterative post order, the stack holds the nodes whose children are not all visited yet
+        final int[] stack = nodeUpdates;
+        int stackSize = 0;
+        int count = 0;
+        int nodeNr = rootNr;
+        int lastVisited = -1;
+        while (nodeNr >= 0 || stackSize > 0) {
+            if (nodeNr >= 0) {
+                stack[stackSize++] = nodeNr;
+                if (leftChildren[nodeNr] >= 0) {
+                    parents[leftChildren[nodeNr]] = nodeNr;
+                    parents[rightChildren[nodeNr]] = nodeNr;
+                }
+                nodeNr = leftChildren[nodeNr];
+            } else {
+                final int topNr = stack[stackSize - 1];
+                if (rightChildren[topNr] >= 0 && rightChildren[topNr] != lastVisited) {
+                    nodeNr = rightChildren[topNr];
+                } else {
+                    postOrder[count++] = topNr;
+                    lastVisited = topNr;
+                    stackSize--;
+                }
+            }
         }
+    }
 
-        if (!node.isLeaf()) {
+    /**
+     * @return the duration of the branch above node nodeNr in the snapshot, 0 for the root
+     */
+    protected double getBranchLength(int nodeNr) {
+
+        if (parents[nodeNr] < 0) {
+            return 0.0;
+        }
+        return nodeHeights[parents[nodeNr]] - nodeHeights[nodeNr];
+    }
 
-            final Node child1 = node.getLeft();
-            final int update1 = traverse(child1, categoryId);
-            final Node child2 = node.getRight();
-            final int update2 = traverse(child2, categoryId);
+    /**
+     * This implements a postorder traversal of the tree, as a loop over the post order of the snapshot, to fill the
+     * ancestral states arrays and to collect the nodes whose partials need to be recalculated (see updateNodes).
+     * Nothing here depends on the site category. Every barcode is updated at each node, so that per branch quantities
+     * are computed once for all barcodes.
+     */
+    protected void traverse() {
+
+        final Node[] nodes = treeInput.get().getNodesAsArray();
+        for (int k = 0; k < nodeCount; k++) {
+            final int nodeIndex = postOrder[k];
+            final Node node = nodes[nodeIndex];
+            int update = (node.isDirty() | hasDirt);
+
+            final double branchRate = branchRateModel.getRateForBranch(node);
+            final double branchTime = getBranchLength(nodeIndex) * branchRate;
+            branchRates[nodeIndex] = branchRate;
+
+            if (nodeIndex == rootNr) {
+                // the root has no branch, the stem above it is added by calculateUneditedLogLikelihoods
+                totalBranchTime -= m_branchLengths[nodeIndex];
+                m_branchLengths[nodeIndex] = 0.0;
+            } else if (update != Tree.IS_CLEAN || branchTime != m_branchLengths[nodeIndex]) {
+                totalBranchTime += branchTime - m_branchLengths[nodeIndex];
+                m_branchLengths[nodeIndex] = branchTime;
+                update |= Tree.IS_DIRTY;
+            }
 
+            final int child1Nr = leftChildren[nodeIndex];
+            final int child2Nr = rightChildren[nodeIndex];
+            updateSubtreeSizes[nodeIndex] = child1Nr < 0 ? 0 : updateSubtreeSizes[child1Nr] + updateSubtreeSizes[child2Nr];
             // If either child node was updated then update this node too
-            if (update1 != Tree.IS_CLEAN || update2 != Tree.IS_CLEAN) {
+            if (child1Nr >= 0 && (nodeUpdates[child1Nr] != Tree.IS_CLEAN || nodeUpdates[child2Nr] != Tree.IS_CLEAN)) {
 
-                update |= (update1 | update2);
+                update |= (nodeUpdates[child1Nr] | nodeUpdates[child2Nr]);
 
                 if (update >= Tree.IS_FILTHY) {
                     setNodeStatesForUpdate(nodeIndex);
-                    calculateStates(nodeIndex, child1.getNr(), child2.getNr());
+                    for (int b = 0; b < barcodeCount; b++) {
+                        calculateStates(b, nodeIndex, child1Nr, child2Nr);
+                    }
                 }
 
                 setNodePartialsForUpdate(nodeIndex);
-                calculatePartials(nodeIndex, child1, child2, categoryId);
-
-                if (useScaling) {
-                    scalePartials(nodeIndex);
+                if (partialsCache == null) {
+                    updateNodes[updateCount++] = nodeIndex;
+                    updateSubtreeSizes[nodeIndex]++;
+                } else {
+                    updateSubtreeHashes(nodeIndex, child1Nr, child2Nr);
+                    if (!restoreCachedPartials(nodeIndex)) {
+                        updateNodes[updateCount++] = nodeIndex;
+                        updateSubtreeSizes[nodeIndex]++;
+                    }
                 }
-
             }
+            nodeUpdates[nodeIndex] = update;
         }
 
-        return update;
+        if (hasDirt != Tree.IS_CLEAN) {
+            totalBranchTime = 0.0;
+            for (int i = 0; i < nodeCount; i++) {
+                totalBranchTime += m_branchLengths[i];
+            }
+        }
     }
 
     /**
      * Construct a set of possible ancestral states at an internal node by intersection of children sets, updates the
-     * AncestralStates hashmap with the resulting set.
+     * ancestral states arrays with the resulting set.
+     * As both children sets are sets of prefixes, their intersection is the set of common prefixes: it keeps the
+     * reference barcode of the first child and the minimum of both prefix lengths and of their longest common prefix.
      */
-    public void calculateStates(int nodeNr, int child1Nr, int child2Nr) {
+    public void calculateStates(int barcode, int nodeNr, int child1Nr, int child2Nr) {
 
-        List<List<Integer>> ancSetChild1 = ancestralStates.get(makeCachingIndexStates(child1Nr));
-        List<List<Integer>> ancSetChild2 = ancestralStates.get(makeCachingIndexStates(child2Nr));
-
-        List<List<Integer>> ancSetNode = new ArrayList<>(ancSetChild1);
+        int reference1 = ancestralReferences[barcode][currentStatesIndex[child1Nr]][child1Nr];
+        int reference2 = ancestralReferences[barcode][currentStatesIndex[child2Nr]][child2Nr];
 
         // intersection of children ancestral states
-        ancSetNode.retainAll(ancSetChild2);
+        int prefixLength = Math.min(ancestralPrefixLengths[barcode][currentStatesIndex[child1Nr]][child1Nr],
+                ancestralPrefixLengths[barcode][currentStatesIndex[child2Nr]][child2Nr]);
+        prefixLength = Math.min(prefixLength, getCommonPrefixLength(leafBarcodes[barcode][reference1], leafBarcodes[barcode][reference2]));
+
+        ancestralReferences[barcode][currentStatesIndex[nodeNr]][nodeNr] = reference1;
+        ancestralPrefixLengths[barcode][currentStatesIndex[nodeNr]][nodeNr] = prefixLength;
+    }
+
+    /**
+     * This function returns the number of edits shared by two barcodes before they differ, i.e. the length of the
+     * longest common prefix of their edits.
+     *
+     * @return the number of leading edits at the same positions and with the same inserts in both barcodes
+     */
+    public static int getCommonPrefixLength(int[] barcode1, int[] barcode2) {
 
-        ancestralStates.put(makeCachingIndexStates(nodeNr), ancSetNode);
+        int commonEdits = 0;
+        for (int site = 0; site < barcode1.length && barcode1[site] == barcode2[site]; site++) {
+            if (barcode1[site] != 0) {
+                commonEdits++;
+            }
+        }
+        return commonEdits;
     }
 
     public void setNodePartialsForUpdate(int nodeIndex) {
@@ -336,96 +1460,350 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
 
     /**
      * This function calculates partial likelihoods for all possible states at a node given its children partials
-     * and sets the corresponding partial likelihoods, for all possible states at node nodeNr
+     * and sets the corresponding partial likelihoods, for all possible states at node nodeNr and for all barcodes.
+     * The Poisson probabilities of both child branches are computed once and shared by all barcodes.
      */
     public void calculatePartials(int nodeNr, Node child1, Node child2, int categoryId) {
+        calculatePartials(nodeNr, child1.getNr(), child2.getNr(), categoryId);
+    }
+
+    protected void calculatePartials(int nodeNr, int child1Nr, int child2Nr, int categoryId) {
+
+        updateBranchProbabilities(child1Nr, categoryId);
+        updateBranchProbabilities(child2Nr, categoryId);
+        calculateNodePartials(nodeNr, child1Nr, child2Nr, categoryId);
+    }
+
+    /**
+     * This function calculates the partials of category categoryId at node nodeNr for all barcodes, given Poisson
+     * probabilities of both child branches that are up to date.
+     */
+    protected void calculateNodePartials(int nodeNr, int child1Nr, int child2Nr, int categoryId) {
+
+        for (int b : editedBarcodes) {
+
+            //initialize an array for the partials, indexed by prefix length
+            int maxPrefixLength = ancestralPrefixLengths[b][currentStatesIndex[nodeNr]][nodeNr];
+            double[] partials = useFloatPartials || useOffHeapPartials ? partialsBuffers[categoryId] : getPartialsForUpdate(b, categoryId, nodeNr);
+
+            // the partials of the children are read once for all start states, off heap they are copied here
+            final double[] child1Partials = getChildPartials(b, categoryId, child1Nr, 0);
+            final double[] child2Partials = getChildPartials(b, categoryId, child2Nr, 1);
+
+            if (useLogSpace) {
+                for (int startLength = maxPrefixLength; startLength >= 0; --startLength) {
+                    partials[startLength] = calculateLogPartialLikelihoodState(b, startLength, child1Nr, categoryId, child1Partials) +
+                            calculateLogPartialLikelihoodState(b, startLength, child2Nr, categoryId, child2Partials);
+                }
+                setPartials(b, categoryId, nodeNr, partials, maxPrefixLength + 1);
+                continue;
+            }
+
+            for (int startLength = maxPrefixLength; startLength >= 0; --startLength) {
+
+                double child1PartialLikelihoodState = calculatePartialLikelihoodState(b, startLength, child1Nr, categoryId, child1Partials);
+                double child2PartialLikelihoodState = calculatePartialLikelihoodState(b, startLength, child2Nr, categoryId, child2Partials);
+
+                partials[startLength] = child1PartialLikelihoodState * child2PartialLikelihoodState;
+            }
+
+            if (useFloatPartials) {
+                storeFloatPartials(b, categoryId, nodeNr, partials, maxPrefixLength + 1);
+                continue;
+            }
+            setPartials(b, categoryId, nodeNr, partials, maxPrefixLength + 1);
+        }
+
+    }
+
+    /**
+     * @return the current partials in double precision of the child childNr, read through the child partials buffer
+     * childIndex with off heap storage, null for a leaf or with single precision partials, which are not read as such.
+     */
+    protected double[] getChildPartials(int barcode, int categoryId, int childNr, int childIndex) {
 
-        //initialize an array for the partials
-        double[] partials = new double[ancestralStates.get(makeCachingIndexStates(nodeNr)).size()];
+        if (leftChildren[childNr] < 0 || useFloatPartials) {
+            return null;
+        }
+        return getPartials(barcode, categoryId, childNr, childIndex);
+    }
 
-        for (int stateIndex = 0; stateIndex < ancestralStates.get(makeCachingIndexStates(nodeNr)).size(); ++stateIndex) {
+    /**
+     * @return the array of the current partials of node nodeNr on the heap, to be overwritten. Arrays are allocated
+     * once, for the longest barcode state, and then reused.
+     */
+    protected double[] getPartialsForUpdate(int barcode, int categoryId, int nodeNr) {
 
-            List<Integer> startState = ancestralStates.get(makeCachingIndexStates(nodeNr)).get(stateIndex);
+        final double[][] nodePartials = partialLikelihoods[barcode][categoryId][currentPartialsIndex[nodeNr]];
+        if (nodePartials[nodeNr] == null) {
+            nodePartials[nodeNr] = new double[arrayLengths[barcode] + 1];
+        }
+        return nodePartials[nodeNr];
+    }
 
-            double child1PartialLikelihoodState = calculatePartialLikelihoodState(startState, child1, categoryId);
-            double child2PartialLikelihoodState = calculatePartialLikelihoodState(startState, child2, categoryId);
+    /**
+     * This function sets the current partials of node nodeNr, copying the first length partials off heap or keeping
+     * the array on the heap.
+     */
+    protected void setPartials(int barcode, int categoryId, int nodeNr, double[] partials, int length) {
 
-            partials[stateIndex] = child1PartialLikelihoodState * child2PartialLikelihoodState;
+        if (useOffHeapPartials) {
+            offHeapPartials[barcode].put(getOffHeapOffset(barcode, categoryId, currentPartialsIndex[nodeNr], nodeNr), partials, 0, length);
+        } else {
+            partialLikelihoods[barcode][categoryId][currentPartialsIndex[nodeNr]][nodeNr] = partials;
         }
+    }
+
+    /**
+     * This function scales the first length partials by the power of 2 of their maximum, stores them in single
+     * precision at node nodeNr and saves the exponent of the scaling factor. The float array of the node is allocated once, for the
+     * longest barcode state, and then reused.
+     */
+    protected void storeFloatPartials(int barcode, int categoryId, int nodeNr, double[] partials, int length) {
 
-        partialLikelihoods[currentPartialsIndex[nodeNr]][nodeNr] = partials;
+        float[][] nodePartials = floatPartialLikelihoods[barcode][categoryId][currentPartialsIndex[nodeNr]];
+        if (nodePartials[nodeNr] == null) {
+            nodePartials[nodeNr] = new float[arrayLengths[barcode] + 1];
+        }
+        final float[] floatPartials = nodePartials[nodeNr];
 
+        double scaleFactor = 0.0;
+        for (int k = 0; k < length; k++) {
+            scaleFactor = Math.max(scaleFactor, partials[k]);
+        }
+        if (scaleFactor == 0.0) {
+            // no state is possible, the likelihood is 0
+            Arrays.fill(floatPartials, 0, length, 0.0f);
+            scalingExponents.setExponent(barcode, categoryId, currentPartialsIndex[nodeNr], nodeNr, 0);
+            return;
+        }
+        final int exponent = Math.getExponent(scaleFactor);
+        for (int k = 0; k < length; k++) {
+            floatPartials[k] = (float) Math.scalb(partials[k], -exponent);
+        }
+        scalingExponents.setExponent(barcode, categoryId, currentPartialsIndex[nodeNr], nodeNr, exponent);
     }
 
     /**
      * This function calculates the likelihood of the unedited state at the origin given partial likelihoods at the root
-     * node
+     * node. The Poisson probabilities of the stem have to be up to date (see updateBranchProbabilities).
      *
      * @return likelihood of the unedited barcode at t = origin
      */
 
-    public double calculateOriginPartial(Node rootNode, int categoryId) {
+    public double calculateOriginPartial(int barcode, Node rootNode, int categoryId) {
+        return calculateOriginPartial(barcode, rootNode.getNr(), categoryId);
+    }
+
+    protected double calculateOriginPartial(int barcode, int rootNr, int categoryId) {
 
-        //the start state is the unedited sciphy barcode
-        List<Integer> startState = Arrays.asList(0, 0, 0, 0, 0);
-        double partialAtOrigin = calculatePartialLikelihoodState(startState, rootNode, categoryId);
+        //the start state is the unedited sciphy barcode, i.e. the prefix of length 0
+        double partialAtOrigin = calculatePartialLikelihoodState(barcode, 0, rootNr, categoryId);
         return partialAtOrigin;
 
     }
 
+    /**
+     * This function calculates the evolutionary distance on the branch above childNode for category categoryId and
+     * updates the Poisson probability tables of the branch accordingly. The branch and category rates are those
+     * looked up for the current calculation.
+     */
+    protected void updateBranchProbabilities(int childNr, int categoryId) {
+
+        final double branchRate = branchRates[childNr];
+        updateBranchProbabilities(childNr, categoryId, branchRate, getBranchTime(childNr));
+    }
+
+    /**
+     * This function updates the Poisson probability tables of the branch above childNode for all categories. The
+     * branch rate and the branch time are looked up once, only the category rates differ.
+     */
+    protected void updateBranchProbabilities(int childNr) {
+
+        final double branchRate = branchRates[childNr];
+        final double branchTime = getBranchTime(childNr);
+        for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
+            updateBranchProbabilities(childNr, i, branchRate, branchTime);
+        }
+    }
+
+    private void updateBranchProbabilities(int childNr, int categoryId, double branchRate, double branchTime) {
+
+        final double jointBranchRate = categoryRates[categoryId] * branchRate;
+        updatePoissonProbabilities(childNr, categoryId, branchTime * jointBranchRate);
+    }
+
+    /**
+     * @return the duration of the branch above node childNr, the stem between the root and the origin for the root
+     */
+    protected double getBranchTime(int childNr) {
+
+        if (childNr == rootNr) {
+            return originTime - nodeHeights[rootNr];
+        }
+        return getBranchLength(childNr);
+    }
+
     /**
      * This function calculates the partial likelihood term of a specific state at a node derived on a branch leading to
-     * a child node
+     * a child node. The state at the node is given by its prefix length, it is a prefix of the child reference barcode.
+     * The Poisson probabilities of the branch have to be up to date (see updateBranchProbabilities).
      *
      * @return partial likelihood for a state at a node given partials at a node childNode
      */
-    public double calculatePartialLikelihoodState(List<Integer> startState, Node childNode, int categoryId) {
+    public double calculatePartialLikelihoodState(int barcode, int startLength, Node childNode, int categoryId) {
+        return calculatePartialLikelihoodState(barcode, startLength, childNode.getNr(), categoryId);
+    }
+
+    protected double calculatePartialLikelihoodState(int barcode, int startLength, int childNr, int categoryId) {
+        return calculatePartialLikelihoodState(barcode, startLength, childNr, categoryId,
+                getChildPartials(barcode, categoryId, childNr, 0));
+    }
+
+    /**
+     * Same as calculatePartialLikelihoodState, given the current partials of the child, see getChildPartials
+     */
+    protected double calculatePartialLikelihoodState(int barcode, int startLength, int childNr, int categoryId,
+                                                     double[] childPartials) {
 
-        final double branchRate = branchRateModel.getRateForBranch(childNode);
         double statePartialLikelihood = 0;
-        final double jointBranchRate = m_siteModel.getRateForCategory(categoryId, childNode) * branchRate;
-        double distance;
 
-        //initialise evolutionary distance
-        if (childNode.isRoot()) {
-            distance = (originTime - childNode.getHeight()) * jointBranchRate;
-        } else {
-            distance = childNode.getLength() * jointBranchRate;
-        }
+        final int childReference = ancestralReferences[barcode][currentStatesIndex[childNr]][childNr];
+        final double[][] childInsertFactors = insertFactors[barcode][childReference];
+        final int childPrefixLength = ancestralPrefixLengths[barcode][currentStatesIndex[childNr]][childNr];
+
+        final double[] poissonProbs = poissonProbabilities[categoryId][childNr];
+        final double[] absorbingProbs = absorbingStateProbabilities[categoryId][childNr];
+
         // calculate partials
-        if (childNode.isLeaf()) {
+        if (leftChildren[childNr] < 0) {
+
+            statePartialLikelihood += substitutionModel.getSequenceTransitionProbability(childInsertFactors, startLength, childPrefixLength,
+                    poissonProbs, absorbingProbs, arrayLengths[barcode]);
 
-            List<Integer> endState = ancestralStates.get(makeCachingIndexStates(childNode.getNr())).get(0);
-            statePartialLikelihood += substitutionModel.getSequenceTransitionProbability(startState, endState, distance, this.arrayLength);
+        } else if (useFloatPartials) {
+
+            final float[] childFloatPartials = floatPartialLikelihoods[barcode][categoryId][currentPartialsIndex[childNr]][childNr];
+
+            for (int endLength = childPrefixLength; endLength >= startLength; --endLength) {
+                if (childFloatPartials[endLength] != 0.0f) {
+                    statePartialLikelihood = statePartialLikelihood + substitutionModel.getSequenceTransitionProbability(childInsertFactors, startLength, endLength,
+                            poissonProbs, absorbingProbs, arrayLengths[barcode]) *
+                            childFloatPartials[endLength];
+                }
+            }
 
         } else {
 
-            for (int endStateIndex = 0; endStateIndex < ancestralStates.get(makeCachingIndexStates(childNode.getNr())).size(); ++endStateIndex) {
+            // end states shorter than the start state violate the ordering of edits and have probability 0
+            statePartialLikelihood = partialsKernel.sumTransitionProducts(childInsertFactors[startLength], poissonProbs,
+                    absorbingProbs, childPartials, 0, startLength, childPrefixLength, arrayLengths[barcode]);
+        }
+        return statePartialLikelihood;
+    }
+
+    /**
+     * Same as calculatePartialLikelihoodState in log space: the partials of childNode and the Poisson tables of its
+     * branch hold logs, and the terms are summed by a single pass log-sum-exp, which rescales the running sum whenever
+     * a larger term is found.
+     *
+     * @return log partial likelihood for a state at a node given log partials at a node childNode
+     */
+    public double calculateLogPartialLikelihoodState(int barcode, int startLength, Node childNode, int categoryId) {
+        return calculateLogPartialLikelihoodState(barcode, startLength, childNode.getNr(), categoryId);
+    }
+
+    protected double calculateLogPartialLikelihoodState(int barcode, int startLength, int childNr, int categoryId) {
+        return calculateLogPartialLikelihoodState(barcode, startLength, childNr, categoryId,
+                getChildPartials(barcode, categoryId, childNr, 0));
+    }
+
+    /**
+     * Same as calculateLogPartialLikelihoodState, given the current log partials of the child, see getChildPartials
+     */
+    protected double calculateLogPartialLikelihoodState(int barcode, int startLength, int childNr, int categoryId,
+                                                        double[] childPartials) {
+
+        final int childReference = ancestralReferences[barcode][currentStatesIndex[childNr]][childNr];
+        final double[][] childLogInsertFactors = logInsertFactors[barcode][childReference];
+        final int childPrefixLength = ancestralPrefixLengths[barcode][currentStatesIndex[childNr]][childNr];
 
-                List<Integer> endState = ancestralStates.get(makeCachingIndexStates(childNode.getNr())).get(endStateIndex);
+        final double[] logPoissonProbs = poissonProbabilities[categoryId][childNr];
+        final double[] logAbsorbingProbs = absorbingStateProbabilities[categoryId][childNr];
+
+        if (leftChildren[childNr] < 0) {
+            return substitutionModel.getLogSequenceTransitionProbability(childLogInsertFactors, startLength, childPrefixLength,
+                    logPoissonProbs, logAbsorbingProbs, arrayLengths[barcode]);
+        }
 
-                // if the end state has non-null partial likelihood
-                if (partialLikelihoods[currentPartialsIndex[childNode.getNr()]][childNode.getNr()][endStateIndex] != 0.0) {
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0.0;
+        for (int endLength = childPrefixLength; endLength >= startLength; --endLength) {
 
-                    statePartialLikelihood = statePartialLikelihood + substitutionModel.getSequenceTransitionProbability(startState, endState, distance, this.arrayLength) *
-                            partialLikelihoods[currentPartialsIndex[childNode.getNr()]][childNode.getNr()][endStateIndex];
+            // if the end state has non-null partial likelihood
+            if (childPartials[endLength] != Double.NEGATIVE_INFINITY) {
 
+                final double term = substitutionModel.getLogSequenceTransitionProbability(childLogInsertFactors, startLength, endLength,
+                        logPoissonProbs, logAbsorbingProbs, arrayLengths[barcode]) + childPartials[endLength];
+                if (term > max) {
+                    sum = sum * Math.exp(max - term) + 1.0;
+                    max = term;
+                } else if (term != Double.NEGATIVE_INFINITY) {
+                    sum += Math.exp(term - max);
                 }
             }
         }
-        return statePartialLikelihood;
+        return max + Math.log(sum);
+    }
+
+    /**
+     * @return the log of the sum of the exponentials of the first length logValues, negative infinity if all are
+     */
+    protected static double logSumExp(double[] logValues, int length) {
+
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < length; i++) {
+            max = Math.max(max, logValues[i]);
+        }
+        if (max == Double.NEGATIVE_INFINITY) {
+            return max;
+        }
+        double sum = 0.0;
+        for (int i = 0; i < length; i++) {
+            sum += Math.exp(logValues[i] - max);
+        }
+        return max + Math.log(sum);
+    }
+
+    /**
+     * This function fills the Poisson probability tables of the branch above node nodeIndex for category categoryId,
+     * unless they were already computed for the same evolutionary distance.
+     */
+    protected void updatePoissonProbabilities(int nodeIndex, int categoryId, double distance) {
+
+        if (poissonDistances[categoryId][nodeIndex] != distance) {
+            if (useLogSpace) {
+                substitutionModel.getLogPoissonProbabilities(distance, poissonProbabilities[categoryId][nodeIndex],
+                        absorbingStateProbabilities[categoryId][nodeIndex]);
+            } else {
+                substitutionModel.getPoissonProbabilities(distance,
+                        poissonProbabilities[categoryId][nodeIndex], absorbingStateProbabilities[categoryId][nodeIndex]);
+            }
+            poissonDistances[categoryId][nodeIndex] = distance;
+        }
     }
 
     /**
      * This function initialises an array of partial likelihoods for a leaf node, the partial likelihood is 1 for
      * the observed sequence and 0 for everything else. The size corresponds to the total number of possible ancestral states.
+     * The observed sequence is the longest prefix, i.e. the last entry.
      *
      * @return array of partial likelihoods at leaf node
      */
     public double[] initPartialLikelihoodsLeaf(int size) {
 
         double[] leafPartials = new double[size];
-        leafPartials[0] = 1;
+        leafPartials[size - 1] = 1;
         return leafPartials;
     }
 
@@ -452,21 +1830,64 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
     }
 
     /**
-     * This function returns the scaling factor for that pattern by summing over
-     * the log scalings used at each node. If scaling is off then this just returns
+     * This function returns the set of possible ancestral states at a node as explicit barcodes, from the longest to
+     * the shortest prefix.
+     *
+     * @return a list of possible ancestral sciphy barcode states of barcode at node nodeNr
+     */
+    public List<List<Integer>> getAncestralStates(int barcode, int nodeNr) {
+
+        int reference = ancestralReferences[barcode][currentStatesIndex[nodeNr]][nodeNr];
+        int prefixLength = ancestralPrefixLengths[barcode][currentStatesIndex[nodeNr]][nodeNr];
+        List<Integer> referenceBarcode = Arrays.stream(leafBarcodes[barcode][reference]).boxed().collect(Collectors.toList());
+        List<List<Integer>> referenceAncestors = getPossibleAncestors(referenceBarcode);
+        int referenceLength = leafEdits[barcode][reference].length;
+
+        return new ArrayList<>(referenceAncestors.subList(referenceLength - prefixLength, referenceLength + 1));
+    }
+
+    /**
+     * @return a list of possible ancestral sciphy barcode states at node nodeNr, for the first barcode
+     */
+    public List<List<Integer>> getAncestralStates(int nodeNr) {
+        return getAncestralStates(0, nodeNr);
+    }
+
+    /**
+     * This function returns the scaling factor for that pattern from the sum of
+     * the exponents of the scalings used at each node. If scaling is off then this just returns
      * a 0.
      *
      * @return the log scaling factor
      */
-    public double getLogScalingFactor() {
+    public double getLogScalingFactor(int barcode, int categoryId) {
 
-        double logScalingFactor = 0.0;
-        if (useScaling) {
-            for (int i = 0; i < nodeCount; i++) {
-                logScalingFactor += scalingFactors[currentPartialsIndex[i]][i];
+        if (useScaling || useFloatPartials) {
+            return scalingExponents.getLogScalingFactor(barcode, categoryId);
+        }
+        return 0.0;
+    }
+
+    /**
+     * Add the change of the scaling exponents of node nodeNr in category categoryId to the sums of the exponents, after
+     * the partials of the node were calculated in its other buffer.
+     */
+    protected void updateScalingExponentSums(int nodeNr, int categoryId) {
+
+        scalingExponents.update(editedBarcodes, categoryId, currentPartialsIndex[nodeNr], nodeNr);
+    }
+
+    /**
+     * Update the sums of the scaling exponents of category categoryId with the nodes recalculated by the last
+     * traversal. This is done by a single thread for each category.
+     */
+    protected void updateScalingExponentSums(int categoryId) {
+
+        if (useScaling || useFloatPartials) {
+            for (int k = 0; k < updateCount; k++) {
+                updateScalingExponentSums(updateNodes[k], categoryId);
             }
         }
-        return logScalingFactor;
     }
 
 
@@ -478,9 +1899,11 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
     protected boolean requiresRecalculation() {
         hasDirt = Tree.IS_CLEAN;
 
-        if (dataInput.get().isDirtyCalculation()) {
-            hasDirt = Tree.IS_FILTHY;
-            return true;
+        for (Alignment alignment : alignments) {
+            if (alignment.isDirtyCalculation()) {
+                hasDirt = Tree.IS_FILTHY;
+                return true;
+            }
         }
         if (m_siteModel.isDirtyCalculation()) {
             hasDirt = Tree.IS_DIRTY;
@@ -490,6 +1913,9 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
             //m_nHasDirt = Tree.IS_DIRTY;
             return true;
         }
+        if (originTimeInput.get() != null && originTimeInput.get().somethingIsDirty()) {
+            return true;
+        }
         return treeInput.get().somethingIsDirty();
     }
 
@@ -498,8 +1924,24 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
 
         super.store();
         System.arraycopy(m_branchLengths, 0, storedBranchLengths, 0, m_branchLengths.length);
+        storedTotalBranchTime = totalBranchTime;
         System.arraycopy(currentPartialsIndex, 0, storedPartialsIndex, 0, nodeCount);
         System.arraycopy(currentStatesIndex, 0, storedStatesIndex, 0, nodeCount);
+        System.arraycopy(barcodeLogLikelihoods, 0, storedBarcodeLogLikelihoods, 0, barcodeCount);
+        System.arraycopy(leftChildren, 0, storedLeftChildren, 0, nodeCount);
+        System.arraycopy(rightChildren, 0, storedRightChildren, 0, nodeCount);
+        System.arraycopy(parents, 0, storedParents, 0, nodeCount);
+        System.arraycopy(postOrder, 0, storedPostOrder, 0, nodeCount);
+        storedRootNr = rootNr;
+        System.arraycopy(nodeHeights, 0, storedNodeHeights, 0, nodeCount);
+        if (scalingExponents != null) {
+            scalingExponents.store();
+        }
+        likelihoodCore.store();
+        if (partialsCache != null) {
+            System.arraycopy(subtreeHashes, 0, storedSubtreeHashes, 0, nodeCount);
+            System.arraycopy(subtreeChecks, 0, storedSubtreeChecks, 0, nodeCount);
+        }
     }
 
     //TODO do we need unstore??? We think we don't because when scaling is active, it is for the entire likelihood
@@ -511,6 +1953,9 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
         double[] tmp = m_branchLengths;
         m_branchLengths = storedBranchLengths;
         storedBranchLengths = tmp;
+        double tmpTotal = totalBranchTime;
+        totalBranchTime = storedTotalBranchTime;
+        storedTotalBranchTime = tmpTotal;
 
         int[] tmp2 = currentPartialsIndex;
         currentPartialsIndex = storedPartialsIndex;
@@ -519,6 +1964,42 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
         int[] tmp3 = currentStatesIndex;
         currentStatesIndex = storedStatesIndex;
         storedStatesIndex = tmp3;
+
+        double[] tmp4 = barcodeLogLikelihoods;
+        barcodeLogLikelihoods = storedBarcodeLogLikelihoods;
+        storedBarcodeLogLikelihoods = tmp4;
+
+        int[] tmp7 = leftChildren;
+        leftChildren = storedLeftChildren;
+        storedLeftChildren = tmp7;
+        tmp7 = rightChildren;
+        rightChildren = storedRightChildren;
+        storedRightChildren = tmp7;
+        tmp7 = parents;
+        parents = storedParents;
+        storedParents = tmp7;
+        tmp7 = postOrder;
+        postOrder = storedPostOrder;
+        storedPostOrder = tmp7;
+        rootNr = storedRootNr;
+        double[] tmp8 = nodeHeights;
+        nodeHeights = storedNodeHeights;
+        storedNodeHeights = tmp8;
+
+        if (scalingExponents != null) {
+            scalingExponents.restore();
+        }
+        likelihoodCore.restore();
+
+        if (partialsCache != null) {
+            long[] tmp5 = subtreeHashes;
+            subtreeHashes = storedSubtreeHashes;
+            storedSubtreeHashes = tmp5;
+
+            long[] tmp6 = subtreeChecks;
+            subtreeChecks = storedSubtreeChecks;
+            storedSubtreeChecks = tmp6;
+        }
     }
 
 
@@ -0,0 +1,306 @@
+package sciphy.evolution.likelihood;
+
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.ProgramStatus;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beast.base.inference.State;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import sciphy.util.WorkerThreads;
+
+@Description("tree likelihood for several SciPhy alignments, one per target barcode, evolving on the same tree. " +
+        "Barcodes are independent given the tree, site model and branch rate model, so they are split in groups " +
+        "that are evaluated in parallel, each by a SciPhyMultiBarcodeTreeLikelihood, and the log likelihoods are summed. " +
+        "When logged, the log likelihood of each barcode is reported in its own column.")
+
+public class ThreadedSciPhyTreeLikelihood extends GenericTreeLikelihood {
+
+    final public Input<List<Alignment>> alignmentInput = new Input<>("alignment", "alignments of the target barcodes, " +
+            "arrayLength is either the length of all barcodes, or one length per alignment", new ArrayList<>());
+
+    final public Input<RealParameter> originTimeInput = new Input<>("origin", "Duration of the experiment");
+
+    final public Input<IntegerParameter> arrayLengthInput = new Input<>("arrayLength", "Number of positions in the target BC", Validate.REQUIRED);
+
+    final public Input<Boolean> useScalingInput = new Input<Boolean>("useScaling", "Whether or not to scale the log likelihood", false,
+            Validate.OPTIONAL);
+
+    final public Input<Boolean> useLogSpaceInput = new Input<>("useLogSpace", "Whether or not to keep the partial " +
+            "likelihoods as logs, so that they never underflow, instead of scaling them (default false)", false);
+
+    final public Input<Boolean> useFloatPartialsInput = new Input<>("useFloatPartials", "Whether or not to store the " +
+            "partial likelihoods in single precision to halve their memory, the partials of every node are then scaled " +
+            "(default false)", false);
+
+    final public Input<Boolean> useOffHeapPartialsInput = new Input<>("useOffHeapPartials", "Whether or not to store the " +
+            "partial likelihoods outside of the Java heap, in memory allocated once at initialisation, so that they " +
+            "are not traced by the garbage collector (default false)", false);
+
+    final public Input<Boolean> useVectorKernelInput = new Input<>("useVectorKernel", "Whether or not to sum the " +
+            "transition probabilities times the child partials with the vector API, if BEAST runs with " +
+            "--add-modules jdk.incubator.vector, otherwise the scalar kernel is used (default false)", false);
+
+    final public Input<SciPhyTreeLikelihood.Core> coreInput = new Input<>("core", "implementation of the calculations " +
+            "on the partials of each group of barcodes, see SciPhyTreeLikelihood (default reference)",
+            SciPhyTreeLikelihood.Core.reference, SciPhyTreeLikelihood.Core.values());
+
+    final public Input<Boolean> crossCheckCoreInput = new Input<>("crossCheckCore", "Whether or not to run the " +
+            "reference core side by side with core, and to stop as soon as they disagree on a log likelihood (default false)", false);
+
+    final public Input<Integer> categoryThreadsInput = new Input<>("categoryThreads", "number of threads evaluating the " +
+            "site rate categories of each group of barcodes in parallel (default 1)", 1);
+
+    final public Input<Integer> subtreeThreadsInput = new Input<>("subtreeThreads", "number of threads evaluating " +
+            "independent subtrees of each group of barcodes in parallel (default 1)", 1);
+
+    final public Input<Integer> subtreeTaskSizeInput = new Input<>("subtreeTaskSize", "number of nodes to recalculate " +
+            "below which a subtree is evaluated by a single thread, when subtreeThreads is more than 1 (default 64)", 64);
+
+    final public Input<Integer> partialsCacheSizeInput = new Input<>("partialsCacheSize", "number of subtrees whose " +
+            "partials are kept in a least recently used cache by each group of barcodes, if 0 there is no cache " +
+            "(default 0)", 0);
+
+    final public Input<Integer> maxNrOfThreadsInput = new Input<>("threads", "maximum number of threads to use, " +
+            "if less than 1 the number of threads of BEAST is used (default -1)", -1);
+
+    // inputs of the likelihood of a group that are not forwarded as they are: the alignments and their lengths are split
+    static final List<String> SPLIT_INPUTS = Arrays.asList("data", "alignment", "arrayLength");
+
+    // one likelihood per group of barcodes, and the first barcode of each group
+    protected SciPhyMultiBarcodeTreeLikelihood[] barcodeLikelihoods;
+    protected int[] firstBarcodes;
+
+    protected List<Alignment> alignments;
+    protected int threadCount;
+    protected ExecutorService executor;
+
+    // log likelihoods of the groups evaluated by the workers, and their failures (exceptions or errors) if any
+    protected double[] logPByThread;
+    protected Throwable[] exceptionByThread;
+    protected Runnable[] workers;
+    private CountDownLatch countDown;
+
+    public ThreadedSciPhyTreeLikelihood() {
+        dataInput.setRule(Validate.OPTIONAL);
+    }
+
+    @Override
+    public void initAndValidate() {
+        alignments = new ArrayList<>();
+        if (dataInput.get() != null) {
+            alignments.add(dataInput.get());
+        }
+        alignments.addAll(alignmentInput.get());
+        if (alignments.isEmpty()) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid alignment input: at least one alignment is required"));
+        }
+        IntegerParameter arrayLength = arrayLengthInput.get();
+        if (arrayLength.getDimension() != 1 && arrayLength.getDimension() != alignments.size()) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid array length: give either one length for all alignments or one length per alignment"));
+        }
+
+        // every other input of the likelihood of a group is forwarded, so each one has to be an input here too
+        Map<String, Input<?>> inputs = getInputs();
+        List<String> forwardedInputs = new ArrayList<>();
+        for (String name : new SciPhyMultiBarcodeTreeLikelihood().getInputs().keySet()) {
+            if (!SPLIT_INPUTS.contains(name)) {
+                if (!inputs.containsKey(name)) {
+                    throw new IllegalStateException(String.format(
+                            "Input %s of SciPhyMultiBarcodeTreeLikelihood is missing in ThreadedSciPhyTreeLikelihood", name));
+                }
+                forwardedInputs.add(name);
+            }
+        }
+
+        threadCount = ProgramStatus.m_nThreads;
+        if (maxNrOfThreadsInput.get() > 0) {
+            threadCount = maxNrOfThreadsInput.get();
+        }
+        threadCount = Math.max(1, Math.min(threadCount, alignments.size()));
+
+        // split the barcodes in groups of (almost) equal size
+        barcodeLikelihoods = new SciPhyMultiBarcodeTreeLikelihood[threadCount];
+        firstBarcodes = new int[threadCount + 1];
+        for (int i = 0; i < threadCount; i++) {
+            firstBarcodes[i + 1] = firstBarcodes[i] + alignments.size() / threadCount + (i < alignments.size() % threadCount ? 1 : 0);
+
+            List<Alignment> groupAlignments = new ArrayList<>(alignments.subList(firstBarcodes[i], firstBarcodes[i + 1]));
+            IntegerParameter groupArrayLength = arrayLength;
+            if (arrayLength.getDimension() != 1) {
+                StringBuilder lengths = new StringBuilder();
+                for (int b = firstBarcodes[i]; b < firstBarcodes[i + 1]; b++) {
+                    lengths.append(arrayLength.getValue(b)).append(" ");
+                }
+                groupArrayLength = new IntegerParameter(lengths.toString().trim());
+            }
+
+            List<Object> arguments = new ArrayList<>();
+            arguments.add("alignment");
+            arguments.add(groupAlignments);
+            arguments.add("arrayLength");
+            arguments.add(groupArrayLength);
+            for (String name : forwardedInputs) {
+                if (inputs.get(name).get() != null) {
+                    arguments.add(name);
+                    arguments.add(inputs.get(name).get());
+                }
+            }
+
+            barcodeLikelihoods[i] = new SciPhyMultiBarcodeTreeLikelihood();
+            if (getID() != null) {
+                barcodeLikelihoods[i].setID(getID() + "." + i);
+            }
+            barcodeLikelihoods[i].initByName(arguments.toArray());
+        }
+
+        logPByThread = new double[threadCount];
+        exceptionByThread = new Throwable[threadCount];
+        workers = new Runnable[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int threadNr = i;
+            workers[i] = () -> {
+                try {
+                    logPByThread[threadNr] = barcodeLikelihoods[threadNr].calculateLogP();
+                } catch (Throwable e) {
+                    exceptionByThread[threadNr] = e;
+                } finally {
+                    countDown.countDown();
+                }
+            };
+        }
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        if (threadCount > 1) {
+            // the calling thread evaluates the first group
+            executor = WorkerThreads.newPool(threadCount - 1, "SciPhyTreeLikelihood worker");
+        }
+    }
+
+    @Override
+    public double calculateLogP() {
+        if (threadCount == 1) {
+            logP = barcodeLikelihoods[0].calculateLogP();
+            return logP;
+        }
+
+        countDown = new CountDownLatch(threadCount);
+        for (int i = 1; i < threadCount; i++) {
+            executor.execute(workers[i]);
+        }
+        workers[0].run();
+        try {
+            countDown.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the barcode likelihoods", e);
+        }
+
+        for (int i = 0; i < threadCount; i++) {
+            if (exceptionByThread[i] != null) {
+                Throwable e = exceptionByThread[i];
+                Arrays.fill(exceptionByThread, null);
+                WorkerThreads.rethrow(e);
+            }
+        }
+        logP = 0.0;
+        for (int i = 0; i < threadCount; i++) {
+            logP += logPByThread[i];
+        }
+        return logP;
+    }
+
+    public int getBarcodeCount() {
+        return alignments.size();
+    }
+
+    /**
+     * @return the log likelihood of the alignment of barcode, as of the last calculation. If that calculation was
+     * rejected because of a barcode of likelihood 0, the barcodes of its group that were not evaluated are NaN.
+     */
+    public double getBarcodeLogP(int barcode) {
+        int i = 0;
+        while (barcode >= firstBarcodes[i + 1]) {
+            i++;
+        }
+        return barcodeLikelihoods[i].getBarcodeLogP(barcode - firstBarcodes[i]);
+    }
+
+    @Override
+    public List<String> getArguments() {
+        return null;
+    }
+
+    @Override
+    public List<String> getConditions() {
+        return null;
+    }
+
+    @Override
+    public void sample(State state, Random random) {
+    }
+
+    /**
+     * The barcode likelihoods are not part of the model graph, so the dirtiness checks, store and restore are
+     * forwarded to them
+     */
+    @Override
+    protected boolean requiresRecalculation() {
+        boolean requiresRecalculation = false;
+        for (SciPhyMultiBarcodeTreeLikelihood likelihood : barcodeLikelihoods) {
+            requiresRecalculation |= likelihood.requiresRecalculation();
+        }
+        return requiresRecalculation;
+    }
+
+    @Override
+    public void store() {
+        for (SciPhyMultiBarcodeTreeLikelihood likelihood : barcodeLikelihoods) {
+            likelihood.store();
+        }
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        for (SciPhyMultiBarcodeTreeLikelihood likelihood : barcodeLikelihoods) {
+            likelihood.restore();
+        }
+        super.restore();
+    }
+
+    /**
+     * Loggable implementation: one column per barcode, named after the alignment
+     */
+    @Override
+    public void init(PrintStream out) {
+        for (int b = 0; b < alignments.size(); b++) {
+            String alignmentID = alignments.get(b).getID() != null ? alignments.get(b).getID() : Integer.toString(b + 1);
+            out.print(getID() + "." + alignmentID + "\t");
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        for (int b = 0; b < alignments.size(); b++) {
+            out.print(getBarcodeLogP(b) + "\t");
+        }
+    }
+
+}
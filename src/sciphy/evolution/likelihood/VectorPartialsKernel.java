@@ -0,0 +1,45 @@
+package sciphy.evolution.likelihood;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Partials kernel on the vectors of the preferred species of the platform: the Poisson probabilities, the insert
+ * factors and the child partials are read at the same offset from startLength, so the products are computed lane by
+ * lane and summed at the end. The end state with all positions edited, whose probability is that of the absorbing
+ * state, is added last. As the sum is in a different order, it may differ from the scalar kernel in the last bits.
+ * This class needs the module jdk.incubator.vector, it is only loaded by PartialsKernel.create.
+ */
+public class VectorPartialsKernel implements PartialsKernel {
+
+    static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public double sumTransitionProducts(double[] insertFactors, double[] poissonProbabilities, double[] absorbingStateProbabilities,
+                                        double[] childPartials, int childOffset, int startLength, int childPrefixLength, int arrayLength) {
+
+        final int count = childPrefixLength - startLength + 1;
+        final int poissonCount = childPrefixLength == arrayLength ? count - 1 : count;
+
+        int n = 0;
+        double sum = 0;
+        final int bound = SPECIES.loopBound(poissonCount);
+        if (bound > 0) {
+            DoubleVector sums = DoubleVector.zero(SPECIES);
+            for (; n < bound; n += SPECIES.length()) {
+                DoubleVector probabilities = DoubleVector.fromArray(SPECIES, poissonProbabilities, n)
+                        .mul(DoubleVector.fromArray(SPECIES, insertFactors, n));
+                sums = sums.add(probabilities.mul(DoubleVector.fromArray(SPECIES, childPartials, childOffset + startLength + n)));
+            }
+            sum = sums.reduceLanes(VectorOperators.ADD);
+        }
+        for (; n < poissonCount; n++) {
+            sum += poissonProbabilities[n] * insertFactors[n] * childPartials[childOffset + startLength + n];
+        }
+        if (poissonCount < count) {
+            sum += absorbingStateProbabilities[poissonCount] * insertFactors[poissonCount] * childPartials[childOffset + childPrefixLength];
+        }
+        return sum;
+    }
+}
@@ -10,8 +10,6 @@ import beast.base.evolution.datatype.DataType;
 import beast.base.evolution.substitutionmodel.EigenDecomposition;
 import beast.base.evolution.substitutionmodel.SubstitutionModel;
 import beast.base.evolution.tree.Node;
-import org.apache.commons.math.distribution.PoissonDistributionImpl;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -66,55 +64,160 @@ public class SciPhySubstitutionModel extends SubstitutionModel.Base {
     /**
      * This function calculates the probability of transitioning between 2 sequences states in given evolutionary time (distance)
      * (with potentially multiple edits having happened)
+     * This is an adapter of the int[] version for sequences held in lists.
      *
      * @param startSequence  is a sequence state at a parent node
      * @param endSequence is a sequence state at a child node
      */
     public double getSequenceTransitionProbability(final List<Integer> startSequence, final List<Integer> endSequence, double distance, int arrayLength) {
 
-        List<Integer> startState = new ArrayList(startSequence);
-        List<Integer> endState = new ArrayList(endSequence);
+        int[] startState = startSequence.stream().mapToInt(Integer::intValue).toArray();
+        int[] endState = endSequence.stream().mapToInt(Integer::intValue).toArray();
 
-        //create an unedited state to subtract from sequences to get only edited sites
-        List<Integer> zero = Arrays.asList(0);
-
-        //removing all unedited sites from each sequence
-        startState.removeAll(zero);
-        endState.removeAll(zero);
+        return getSequenceTransitionProbability(startState, endState, distance, arrayLength);
+    }
 
-        //if endState is less edited than the start state, violates ordering
-        if(startState.size() > endState.size() ){
-            return 0.0;
+    /**
+     * This function calculates the probability of transitioning between 2 sequences states in given evolutionary time (distance)
+     * (with potentially multiple edits having happened), without copying the sequences.
+     * Because edits are ordered, the edits of the start sequence have to be the first edits of the end sequence,
+     * otherwise the transition has probability 0.
+     *
+     * @param startSequence  is a sequence state at a parent node
+     * @param endSequence is a sequence state at a child node
+     */
+    public double getSequenceTransitionProbability(final int[] startSequence, final int[] endSequence, double distance, int arrayLength) {
+
+        //compare the edits of both sequences in order, skipping unedited sites
+        int startEdits = 0;
+        int endSite = 0;
+        for (int startSite = 0; startSite < startSequence.length; startSite++) {
+            if (startSequence[startSite] == 0) {
+                continue;
+            }
+            while (endSite < endSequence.length && endSequence[endSite] == 0) {
+                endSite++;
+            }
+            //if endState is less edited than the start state, or does not derive from it, violates ordering
+            if (endSite == endSequence.length || endSequence[endSite] != startSequence[startSite]) {
+                return 0.0;
+            }
+            startEdits++;
+            endSite++;
         }
 
-        //subtracting start sequence from end sequence: edits introduced
-        // if start state has identical elements to end state remove
-        startState.forEach(endState::remove);
-        List<Integer> newInserts = endState;
+        //inserts introduced are the remaining edits of the end sequence
+        int nrOfNewInserts = 0;
+        double insertFactor = 1.0;
+        for (; endSite < endSequence.length; endSite++) {
+            if (endSequence[endSite] != 0) {
+                insertFactor = insertFactor * editProbs[endSequence[endSite] - 1];
+                nrOfNewInserts++;
+            }
+        }
 
         //available positions are targetBClength length - number of edited positions
-        int nrOfPossibleInserts = arrayLength - startState.size();
+        int nrOfPossibleInserts = arrayLength - startEdits;
 
-        //initialise the poisson distribution with mean rate * distance
-        org.apache.commons.math.distribution.PoissonDistribution poissonDistribution = new PoissonDistributionImpl(distance);
+        if (nrOfNewInserts > nrOfPossibleInserts) {
+            throw new RuntimeException("Error! Number of new inserts is larger than nr of possible inserts!");
+        }
+
+        //poisson probabilities with mean rate * distance, computed like the tables of getPoissonProbabilities
+        double poissonProbability = Math.exp(-distance);
+        double absorbingStateProbability = 1.0;
+        for (int i = 0; i < nrOfNewInserts; i++) {
+            absorbingStateProbability -= poissonProbability;
+            poissonProbability = poissonProbability * distance / (i + 1);
+        }
 
         //calculate the transition probability for the case where all available positions are edited in
         // This is the absorbing state in the poisson process
         // P(max) = 1- sum(P(n)) * probability of this insert combination
-        if(newInserts.size() == nrOfPossibleInserts ) {
+        if (nrOfNewInserts == nrOfPossibleInserts) {
 
-            return calculateAbsorbingStateProbability(poissonDistribution, nrOfPossibleInserts) * combinedInsertProbabilities(newInserts);
+            return absorbingStateProbability * insertFactor;
         }
         //calculate the transition probability for the case where a #edits < available positions
         //this is a regular draw from the poisson process * probability of this insert combination
-        else if (newInserts.size() < nrOfPossibleInserts){
+        else {
 
-            return poissonDistribution.probability(newInserts.size()) * combinedInsertProbabilities(newInserts);
+            return poissonProbability * insertFactor;
 
-        } else{
+        }
+    }
 
-            throw new RuntimeException("Error! Number of new inserts is larger than nr of possible inserts!");
+    /**
+     * This function calculates the probability of transitioning from the prefix of length startLength to the prefix
+     * of length endLength of a barcode's edits, given the Poisson probability tables of the branch
+     * (see getPoissonProbabilities). It does not allocate, and is used in the likelihood's inner loops.
+     *
+     * @param edits ordered edits of the barcode, unedited sites removed
+     * @param startLength number of edits in the state at the parent node
+     * @param endLength number of edits in the state at the child node, at most arrayLength
+     * @param poissonProbabilities probabilities of n edits on the branch
+     * @param absorbingStateProbabilities probabilities of at least n edits on the branch
+     */
+    public double getSequenceTransitionProbability(final int[] edits, int startLength, int endLength,
+                                                   double[] poissonProbabilities, double[] absorbingStateProbabilities, int arrayLength) {
+
+        //if endState is less edited than the start state, violates ordering
+        if (startLength > endLength) {
+            return 0.0;
+        }
+
+        //available positions are targetBClength length - number of edited positions
+        int nrOfPossibleInserts = arrayLength - startLength;
+        int nrOfNewInserts = endLength - startLength;
+
+        if (nrOfNewInserts == nrOfPossibleInserts) {
+            return absorbingStateProbabilities[nrOfPossibleInserts] * combinedInsertProbabilities(edits, startLength, endLength);
+        }
+        return poissonProbabilities[nrOfNewInserts] * combinedInsertProbabilities(edits, startLength, endLength);
+    }
+
+    /**
+     * Same as above, with the insert probability factor read from the barcode's table of insert factors
+     * (see getInsertFactors) instead of being multiplied out for every state pair.
+     *
+     * @param insertFactors factors of the runs of consecutive edits of the barcode
+     */
+    public double getSequenceTransitionProbability(final double[][] insertFactors, int startLength, int endLength,
+                                                   double[] poissonProbabilities, double[] absorbingStateProbabilities, int arrayLength) {
+
+        //if endState is less edited than the start state, violates ordering
+        if (startLength > endLength) {
+            return 0.0;
+        }
+
+        int nrOfPossibleInserts = arrayLength - startLength;
+        int nrOfNewInserts = endLength - startLength;
+
+        if (nrOfNewInserts == nrOfPossibleInserts) {
+            return absorbingStateProbabilities[nrOfPossibleInserts] * insertFactors[startLength][nrOfNewInserts];
+        }
+        return poissonProbabilities[nrOfNewInserts] * insertFactors[startLength][nrOfNewInserts];
+    }
+
+    /**
+     * Same as above in log space: the tables hold log probabilities (see getLogPoissonProbabilities and
+     * getLogInsertFactors) and the log of the transition probability is returned.
+     */
+    public double getLogSequenceTransitionProbability(final double[][] logInsertFactors, int startLength, int endLength,
+                                                      double[] logPoissonProbabilities, double[] logAbsorbingStateProbabilities, int arrayLength) {
+
+        //if endState is less edited than the start state, violates ordering
+        if (startLength > endLength) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        int nrOfPossibleInserts = arrayLength - startLength;
+        int nrOfNewInserts = endLength - startLength;
+
+        if (nrOfNewInserts == nrOfPossibleInserts) {
+            return logAbsorbingStateProbabilities[nrOfPossibleInserts] + logInsertFactors[startLength][nrOfNewInserts];
         }
+        return logPoissonProbabilities[nrOfNewInserts] + logInsertFactors[startLength][nrOfNewInserts];
     }
 
 
@@ -139,6 +242,88 @@ public class SciPhySubstitutionModel extends SubstitutionModel.Base {
     }
 
 
+    /**
+     * This function fills the tables of Poisson probabilities for a given evolutionary time (distance), so that they
+     * can be shared by all the sequence transitions along a branch. The probabilities are computed by the recurrence
+     * P(n) = P(n - 1) * distance / n, which allocates nothing and keeps no state in the model, shared by threads.
+     *
+     * @param distance is the mean of the poisson distribution
+     * @param probabilities is filled with the probabilities of n edits, for n in {0, ..., probabilities.length - 1}
+     * @param absorbingStateProbabilities is filled with the probabilities of reaching the absorbing state with n
+     *                                    available positions, i.e. of at least n edits
+     */
+    public void getPoissonProbabilities(double distance, double[] probabilities, double[] absorbingStateProbabilities) {
+
+        double probability = Math.exp(-distance);
+        absorbingStateProbabilities[0] = 1.0;
+        for (int i = 0; i < probabilities.length; i++) {
+            probabilities[i] = probability;
+            if (i + 1 < absorbingStateProbabilities.length) {
+                absorbingStateProbabilities[i + 1] = absorbingStateProbabilities[i] - probability;
+            }
+            probability = probability * distance / (i + 1);
+        }
+    }
+
+    /**
+     * Same as getPoissonProbabilities, filling the tables with log probabilities. The probabilities of n edits are
+     * computed in log space, so they do not underflow on long branches. The probability of at least n edits is
+     * 1 - P(less than n edits) when that is at least 0.5, and the sum of the tail of the distribution otherwise, to
+     * avoid cancellation.
+     */
+    public void getLogPoissonProbabilities(double distance, double[] logProbabilities, double[] logAbsorbingStateProbabilities) {
+
+        if (distance == 0.0) {
+            Arrays.fill(logProbabilities, Double.NEGATIVE_INFINITY);
+            Arrays.fill(logAbsorbingStateProbabilities, Double.NEGATIVE_INFINITY);
+            logProbabilities[0] = 0.0;
+            logAbsorbingStateProbabilities[0] = 0.0;
+            return;
+        }
+
+        double logDistance = Math.log(distance);
+        double logFactorial = 0.0;
+        for (int i = 0; i < logProbabilities.length; i++) {
+            if (i > 0) {
+                logFactorial += Math.log(i);
+            }
+            logProbabilities[i] = i * logDistance - distance - logFactorial;
+        }
+
+        logAbsorbingStateProbabilities[0] = 0.0;
+        double cumulativeProbability = 0.0;
+        for (int n = 1; n < logAbsorbingStateProbabilities.length; n++) {
+            cumulativeProbability += Math.exp(logProbabilities[n - 1]);
+            if (cumulativeProbability <= 0.5) {
+                logAbsorbingStateProbabilities[n] = Math.log1p(-cumulativeProbability);
+            } else {
+                logAbsorbingStateProbabilities[n] = getLogPoissonTail(n, logDistance, distance);
+            }
+        }
+    }
+
+    /**
+     * @return the log of the probability of at least n events of a Poisson distribution with mean distance, when that
+     * probability is at most 0.5
+     */
+    private double getLogPoissonTail(int n, double logDistance, double distance) {
+
+        double logFactorial = 0.0;
+        for (int i = 2; i <= n; i++) {
+            logFactorial += Math.log(i);
+        }
+        // sum the terms relative to the first one, the terms decrease once i > distance
+        double logFirstTerm = n * logDistance - distance - logFactorial;
+        double sum = 1.0;
+        double term = 1.0;
+        for (int i = n + 1; term > sum * 1e-17 || i <= distance; i++) {
+            term *= distance / i;
+            sum += term;
+        }
+        return logFirstTerm + Math.log(sum);
+    }
+
+
     /**
      * Function to obtain the probability factor induced by insert frequencies
      * combineInsertProbabilities
@@ -156,6 +341,57 @@ public class SciPhySubstitutionModel extends SubstitutionModel.Base {
 
     }
 
+    /**
+     * Function to obtain the probability factor induced by the inserts edits[from], ..., edits[to - 1]
+     */
+    public double combinedInsertProbabilities(int[] edits, int from, int to) {
+
+        double factor = 1.0;
+
+        for (int i = from; i < to; i++) {
+            //inserts are in {1, ..., nInserts}; insertProbabilities are in {0, ..., nInserts - 1}
+            factor = factor * editProbs[edits[i] - 1];
+        }
+        return factor;
+
+    }
+
+    /**
+     * Function to fill the table of probability factors induced by any run of consecutive edits of a barcode:
+     * insertFactors[from][n] is the factor of the inserts edits[from], ..., edits[from + n - 1], multiplied in the
+     * same order as combinedInsertProbabilities, and logPrefixProducts[k] is the log of the factor of the first k edits.
+     * insertFactors[from] has length edits.length - from + 1 and logPrefixProducts has length edits.length + 1.
+     */
+    public void getInsertFactors(int[] edits, double[][] insertFactors, double[] logPrefixProducts) {
+
+        for (int from = 0; from <= edits.length; from++) {
+            insertFactors[from][0] = 1.0;
+            for (int n = 0; from + n < edits.length; n++) {
+                //inserts are in {1, ..., nInserts}; insertProbabilities are in {0, ..., nInserts - 1}
+                insertFactors[from][n + 1] = insertFactors[from][n] * editProbs[edits[from + n] - 1];
+            }
+        }
+
+        logPrefixProducts[0] = 0.0;
+        for (int i = 0; i < edits.length; i++) {
+            logPrefixProducts[i + 1] = logPrefixProducts[i] + Math.log(editProbs[edits[i] - 1]);
+        }
+    }
+
+    /**
+     * Same as getInsertFactors with the logs of the factors: logInsertFactors[from][n] is the sum of the log
+     * probabilities of the inserts edits[from], ..., edits[from + n - 1].
+     */
+    public void getLogInsertFactors(int[] edits, double[][] logInsertFactors) {
+
+        for (int from = 0; from <= edits.length; from++) {
+            logInsertFactors[from][0] = 0.0;
+            for (int n = 0; from + n < edits.length; n++) {
+                logInsertFactors[from][n + 1] = logInsertFactors[from][n] + Math.log(editProbs[edits[from + n] - 1]);
+            }
+        }
+    }
+
     /**
      * Function to obtain the array of insert probabilities
      *
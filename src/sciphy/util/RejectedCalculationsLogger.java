@@ -0,0 +1,47 @@
+package sciphy.util;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Loggable;
+import sciphy.evolution.likelihood.SciPhyTreeLikelihood;
+
+import java.io.PrintStream;
+
+/**
+ * Logger for the number of calculations of a SciPhy tree likelihood that returned -Infinity before calculating any
+ * partial, and the number of calculations that traversed the tree.
+ */
+@Description("Logs the number of likelihood calculations rejected before calculating any partial, " +
+        "and the number of full likelihood calculations")
+public class RejectedCalculationsLogger extends BEASTObject implements Loggable {
+
+    public Input<SciPhyTreeLikelihood> likelihoodInput = new Input<SciPhyTreeLikelihood>(
+            "likelihood",
+            "SciPhy tree likelihood whose calculations to count.",
+            Validate.REQUIRED);
+
+    private SciPhyTreeLikelihood likelihood;
+
+    @Override
+    public void initAndValidate() {
+        likelihood = likelihoodInput.get();
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        String outName = likelihood.getID() != null ? likelihood.getID() : "likelihood";
+        out.print(outName + ".rejectedCalculations\t" + outName + ".fullCalculations\t");
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        out.print(likelihood.getRejectedCalculationCount() + "\t" + likelihood.getFullCalculationCount() + "\t");
+    }
+
+    @Override
+    public void close(PrintStream out) {
+    }
+
+}
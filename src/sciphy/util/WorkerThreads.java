@@ -0,0 +1,49 @@
+package sciphy.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class WorkerThreads {
+
+    /**
+     * Seconds a worker thread waits for a new task before it terminates
+     */
+    public static final long KEEP_ALIVE_SECONDS = 10;
+
+    /**
+     * Creates a pool of at most threadCount daemon threads. Idle threads terminate after KEEP_ALIVE_SECONDS, so the
+     * pool of a likelihood that is no longer evaluated holds no thread, and is garbage collected with the likelihood.
+     *
+     * @param threadCount maximum number of threads
+     * @param name        name of the threads
+     */
+    public static ExecutorService newPool(int threadCount, String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Rethrows on the calling thread what a worker threw, errors included, so that a failed worker is never mistaken
+     * for one that returned a result.
+     *
+     * @param throwable exception or error thrown by a worker
+     */
+    public static void rethrow(Throwable throwable) {
+        if (throwable instanceof RuntimeException) {
+            throw (RuntimeException) throwable;
+        }
+        if (throwable instanceof Error) {
+            throw (Error) throwable;
+        }
+        throw new RuntimeException(throwable);
+    }
+
+}
@@ -0,0 +1,56 @@
+package sciphy;
+
+import org.junit.Test;
+import sciphy.evolution.likelihood.PartialsKernel;
+import sciphy.evolution.likelihood.ScalarPartialsKernel;
+
+import java.util.Random;
+import static junit.framework.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Comparison of the scalar and vector partials kernels for array lengths 5, 20 and 100. The vector kernel is only
+ * used if the tests run with --add-modules jdk.incubator.vector, otherwise both kernels are scalar. Their timings are
+ * compared by the JMH benchmark sciphy.PartialsKernelBenchmark, run with "ant benchmark".
+ */
+public class PartialsKernelTest {
+
+    static final int[] ARRAY_LENGTHS = {5, 20, 100};
+
+    @Test
+    public void testScalarKernelWithoutVectorModule() {
+        assertTrue(PartialsKernel.create(false) instanceof ScalarPartialsKernel);
+    }
+
+    @Test
+    public void testKernelsAgree() {
+
+        Random random = new Random(1);
+        PartialsKernel scalarKernel = PartialsKernel.create(false);
+        PartialsKernel vectorKernel = PartialsKernel.create(true);
+
+        for (int arrayLength : ARRAY_LENGTHS) {
+            double[] poissonProbabilities = new double[arrayLength + 1];
+            double[] absorbingStateProbabilities = new double[arrayLength + 1];
+            double[] insertFactors = new double[arrayLength + 1];
+            double[] childPartials = new double[arrayLength + 1];
+            for (int n = 0; n <= arrayLength; n++) {
+                poissonProbabilities[n] = random.nextDouble();
+                absorbingStateProbabilities[n] = random.nextDouble();
+                insertFactors[n] = random.nextDouble();
+                // some end states are not possible at the child
+                childPartials[n] = random.nextInt(4) == 0 ? 0.0 : random.nextDouble();
+            }
+
+            for (int childPrefixLength = 0; childPrefixLength <= arrayLength; childPrefixLength++) {
+                for (int startLength = 0; startLength <= childPrefixLength; startLength++) {
+                    double sum = scalarKernel.sumTransitionProducts(insertFactors, poissonProbabilities, absorbingStateProbabilities,
+                            childPartials, 0, startLength, childPrefixLength, arrayLength);
+                    double vectorSum = vectorKernel.sumTransitionProducts(insertFactors, poissonProbabilities, absorbingStateProbabilities,
+                            childPartials, 0, startLength, childPrefixLength, arrayLength);
+                    assertEquals(sum, vectorSum, 1e-12 * Math.abs(sum));
+                }
+            }
+        }
+    }
+}
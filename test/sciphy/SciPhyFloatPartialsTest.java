@@ -0,0 +1,179 @@
+package sciphy;
+
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.branchratemodel.StrictClockModel;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import sciphy.evolution.likelihood.SciPhyMultiBarcodeTreeLikelihood;
+import sciphy.evolution.likelihood.SciPhyTreeLikelihood;
+import sciphy.evolution.substitutionmodel.SciPhySubstitutionModel;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static junit.framework.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Accuracy of the partials stored in single precision against the double precision likelihood, on the data sets of
+ * the examples. Floats keep about 7 significant digits per partial, but as the partials of every node are rescaled and
+ * all sums and products are done in double, the relative error on the log likelihood of these data sets is about 1e-12,
+ * and is checked to stay below 1e-8.
+ */
+public class SciPhyFloatPartialsTest {
+
+    static final double RELATIVE_ACCURACY = 1e-8;
+
+    static Document readExample(String path) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File(path));
+    }
+
+    static Element getElementById(Document document, String tag, String id) {
+        NodeList elements = document.getElementsByTagName(tag);
+        for (int i = 0; i < elements.getLength(); i++) {
+            Element element = (Element) elements.item(i);
+            if (id.equals(element.getAttribute("id"))) {
+                return element;
+            }
+        }
+        throw new IllegalArgumentException("no " + tag + " with id " + id);
+    }
+
+    static Alignment readAlignment(Element data) {
+        Alignment alignment = new Alignment();
+        NodeList sequences = data.getElementsByTagName("sequence");
+        for (int i = 0; i < sequences.getLength(); i++) {
+            Element sequence = (Element) sequences.item(i);
+            alignment.initByName("sequence", new Sequence(sequence.getAttribute("taxon"), sequence.getAttribute("value")), "dataType", "integer");
+        }
+        alignment.setID(data.getAttribute("id"));
+        return alignment;
+    }
+
+    static SiteModel siteModel(String editProbabilities, int gammaCategoryCount) {
+        int stateCount = editProbabilities.trim().split("\\s+").length + 1;
+        StringBuilder stateFrequencies = new StringBuilder("1.0");
+        for (int i = 1; i < stateCount; i++) {
+            stateFrequencies.append(" 0");
+        }
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", new RealParameter(stateFrequencies.toString()), "estimate", false);
+        SciPhySubstitutionModel substitutionModel = new SciPhySubstitutionModel();
+        substitutionModel.initByName("editProbabilities", new RealParameter(editProbabilities.trim()), "frequencies", frequencies);
+
+        SiteModel siteM = new SiteModel();
+        if (gammaCategoryCount > 1) {
+            siteM.initByName("gammaCategoryCount", gammaCategoryCount, "shape", new RealParameter("1.0"), "substModel", substitutionModel);
+        } else {
+            siteM.initByName("gammaCategoryCount", 0, "substModel", substitutionModel);
+        }
+        return siteM;
+    }
+
+    // random binary tree on the taxa, with all leaves at height 0 and the root at rootHeight
+    static String randomNewick(List<String> taxa, double rootHeight, Random random) {
+        List<String> clades = new ArrayList<>(taxa);
+        List<Double> heights = new ArrayList<>();
+        for (int i = 0; i < taxa.size(); i++) {
+            heights.add(0.0);
+        }
+        double height = 0.0;
+        while (clades.size() > 1) {
+            height = clades.size() == 2 ? rootHeight : height + (rootHeight - height) * random.nextDouble() / clades.size();
+            int first = random.nextInt(clades.size());
+            String clade1 = clades.remove(first) + ":" + (height - heights.remove(first));
+            int second = random.nextInt(clades.size());
+            String clade2 = clades.remove(second) + ":" + (height - heights.remove(second));
+            clades.add("(" + clade1 + "," + clade2 + ")");
+            heights.add(height);
+        }
+        return clades.get(0);
+    }
+
+    @Test
+    public void testSingleBarcodeFixedTreeExample() throws Exception {
+
+        Document document = readExample("examples/single_bcode/analysis/single_bcode_fixed_tree.xml");
+        Alignment alignment = readAlignment(getElementById(document, "data", "simulatedAlignment"));
+        String newick = getElementById(document, "stateNode", "simulatedTree").getAttribute("newick");
+        String editProbabilities = getElementById(document, "parameter", "editProbs").getTextContent();
+        RealParameter clockRate = new RealParameter(getElementById(document, "parameter", "clockRate").getTextContent().trim());
+        RealParameter origin = new RealParameter(getElementById(document, "parameter", "origin").getTextContent().trim());
+
+        Tree tree = new TreeParser();
+        tree.initByName("IsLabelledNewick", true, "taxa", alignment, "newick", newick, "adjustTipHeights", false, "offset", 0);
+
+        for (int gammaCategoryCount : new int[]{1, 4}) {
+            SiteModel siteM = siteModel(editProbabilities, gammaCategoryCount);
+            StrictClockModel clockModel = new StrictClockModel();
+            clockModel.initByName("clock.rate", clockRate);
+
+            SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+            likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                    "origin", origin, "arrayLength", new IntegerParameter("5"), "useScaling", true);
+            SciPhyTreeLikelihood floatLikelihood = new SciPhyTreeLikelihood();
+            floatLikelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                    "origin", origin, "arrayLength", new IntegerParameter("5"), "useFloatPartials", true);
+
+            double logP = likelihood.calculateLogP();
+            double floatLogP = floatLikelihood.calculateLogP();
+            assertTrue(!Double.isInfinite(logP));
+            assertEquals(logP, floatLogP, RELATIVE_ACCURACY * Math.abs(logP));
+        }
+    }
+
+    @Test
+    public void testMultipleBarcodesExample() throws Exception {
+
+        Document document = readExample("examples/multiple_bcodes/analysis/typewriter_model_multiple_alignments.xml");
+        List<Alignment> alignments = new ArrayList<>();
+        NodeList data = document.getElementsByTagName("data");
+        for (int i = 0; i < data.getLength(); i++) {
+            alignments.add(readAlignment((Element) data.item(i)));
+        }
+        String editProbabilities = getElementById(document, "parameter", "editProbs").getTextContent();
+        RealParameter clockRate = new RealParameter(getElementById(document, "parameter", "clockRate").getTextContent().trim());
+        RealParameter origin = new RealParameter(getElementById(document, "parameter", "origin").getTextContent().trim());
+
+        // the example starts from a random tree, of height 20
+        Tree tree = new TreeParser();
+        tree.initByName("IsLabelledNewick", true, "taxa", alignments.get(0), "newick",
+                randomNewick(alignments.get(0).getTaxaNames(), 20.0, new Random(1)),
+                "adjustTipHeights", false, "offset", 0);
+
+        SiteModel siteM = siteModel(editProbabilities, 1);
+        StrictClockModel clockModel = new StrictClockModel();
+        clockModel.initByName("clock.rate", clockRate);
+        StringBuilder arrayLengths = new StringBuilder();
+        for (Alignment alignment : alignments) {
+            arrayLengths.append(alignment.getSiteCount()).append(" ");
+        }
+
+        SciPhyMultiBarcodeTreeLikelihood likelihood = new SciPhyMultiBarcodeTreeLikelihood();
+        likelihood.initByName("alignment", alignments, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                "origin", origin, "arrayLength", new IntegerParameter(arrayLengths.toString().trim()), "useScaling", true);
+        SciPhyMultiBarcodeTreeLikelihood floatLikelihood = new SciPhyMultiBarcodeTreeLikelihood();
+        floatLikelihood.initByName("alignment", alignments, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                "origin", origin, "arrayLength", new IntegerParameter(arrayLengths.toString().trim()), "useFloatPartials", true);
+
+        double logP = likelihood.calculateLogP();
+        double floatLogP = floatLikelihood.calculateLogP();
+        assertTrue(!Double.isInfinite(logP));
+        for (int b = 0; b < alignments.size(); b++) {
+            assertEquals(likelihood.getBarcodeLogP(b), floatLikelihood.getBarcodeLogP(b), RELATIVE_ACCURACY * Math.abs(likelihood.getBarcodeLogP(b)));
+        }
+        assertEquals(logP, floatLogP, RELATIVE_ACCURACY * Math.abs(logP));
+    }
+
+}
@@ -0,0 +1,709 @@
+package sciphy;
+
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.branchratemodel.StrictClockModel;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import sciphy.evolution.likelihood.ContiguousSciPhyLikelihoodCore;
+import sciphy.evolution.likelihood.CrossCheckSciPhyLikelihoodCore;
+import sciphy.evolution.likelihood.ReferenceSciPhyLikelihoodCore;
+import sciphy.evolution.likelihood.ScalingExponents;
+import sciphy.evolution.likelihood.SciPhyTreeLikelihood;
+import sciphy.evolution.substitutionmodel.SciPhySubstitutionModel;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import static junit.framework.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Benchmarks of the likelihood calculation in MCMC steps: with several site categories, a node height move only
+ * recalculates the partials on the path from the moved node to the root, i.e. O(depth) nodes per MCMC step, and
+ * after warm-up an evaluation does not allocate on the heap.
+ */
+public class SciPhyLikelihoodBenchmarkTest {
+
+    static final int LEAF_COUNT = 64;
+    static final int ARRAY_LENGTH = 5;
+
+    /**
+     * Gives access to the dirtiness check the MCMC runs before each calculation
+     */
+    static class IncrementalLikelihood extends SciPhyTreeLikelihood {
+        boolean checkDirtiness() {
+            return requiresRecalculation();
+        }
+    }
+
+    // balanced subtree with branches of length 1, so that all leaves are at height 0
+    static String balancedNewick(int first, int count) {
+        if (count == 1) {
+            return "CHILD" + first;
+        }
+        return "(" + balancedNewick(first, count / 2) + ":1," + balancedNewick(first + count / 2, count / 2) + ":1)";
+    }
+
+    Random random;
+    int depth;
+    Alignment alignment;
+    Tree tree;
+    SiteModel siteM;
+    StrictClockModel clockModel;
+    RealParameter clockRate;
+    RealParameter origin;
+    IntegerParameter arrayLength;
+    List<Node> movableNodes;
+
+    @Before
+    public void setUp() {
+
+        random = new Random(1);
+        depth = Integer.numberOfTrailingZeros(LEAF_COUNT);
+
+        alignment = new Alignment();
+        for (int i = 0; i < LEAF_COUNT; i++) {
+            StringBuilder barcode = new StringBuilder();
+            int editCount = random.nextInt(ARRAY_LENGTH + 1);
+            for (int site = 0; site < ARRAY_LENGTH; site++) {
+                barcode.append(site > 0 ? "," : "").append(site < editCount ? 1 + random.nextInt(2) : 0);
+            }
+            alignment.initByName("sequence", new Sequence("CHILD" + i, barcode.toString()), "dataType", "integer");
+        }
+
+        String newick = balancedNewick(0, LEAF_COUNT);
+        tree = new TreeParser();
+        tree.initByName("IsLabelledNewick", true, "taxa", alignment, "newick",
+                newick,
+                "adjustTipHeights", false, "offset", 0);
+
+        SciPhySubstitutionModel substitutionModel = new SciPhySubstitutionModel();
+        RealParameter stateFrequencies = new RealParameter("1.0 0 0");
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", stateFrequencies, "estimate", false);
+        substitutionModel.initByName("editProbabilities", new RealParameter("0.8 0.2"), "frequencies", frequencies);
+
+        siteM = new SiteModel();
+        siteM.initByName("gammaCategoryCount", 4, "shape", new RealParameter("0.5"), "substModel", substitutionModel);
+
+        clockModel = new StrictClockModel();
+        clockRate = new RealParameter("0.2");
+        clockModel.initByName("clock.rate", clockRate);
+        origin = new RealParameter("" + (depth + 2));
+        arrayLength = new IntegerParameter("" + ARRAY_LENGTH);
+
+        movableNodes = new ArrayList<>();
+        for (Node node : tree.getNodesAsArray()) {
+            if (!node.isLeaf() && !node.isRoot()) {
+                movableNodes.add(node);
+            }
+        }
+    }
+
+    // propose a new height for a random internal node, and return the node
+    Node proposeHeight() {
+        Node node = movableNodes.get(random.nextInt(movableNodes.size()));
+        double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+        double upper = node.getParent().getHeight();
+        node.setHeight(lower + (upper - lower) * (0.05 + 0.9 * random.nextDouble()));
+        return node;
+    }
+
+    @Test
+    public void testNodeRecalculationsPerHeightMove() {
+
+        IncrementalLikelihood likelihood = new IncrementalLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", arrayLength);
+        likelihood.calculateLogP();
+        assertEquals(tree.getInternalNodeCount(), likelihood.getUpdatedNodeCount());
+        tree.setEverythingDirty(false);
+
+        int steps = 500;
+        long totalUpdatedNodes = 0;
+        for (int step = 0; step < steps; step++) {
+
+            likelihood.store();
+            double[] heights = getHeights();
+            Node node = proposeHeight();
+
+            likelihood.checkDirtiness();
+            double logP = likelihood.calculateLogP();
+
+            int pathLength = 0;
+            for (Node ancestor = node; ancestor != null; ancestor = ancestor.getParent()) {
+                pathLength++;
+            }
+            assertEquals(pathLength, likelihood.getUpdatedNodeCount());
+            totalUpdatedNodes += likelihood.getUpdatedNodeCount();
+
+            // the incremental calculation gives the same result as a calculation from scratch
+            SciPhyTreeLikelihood fullLikelihood = new SciPhyTreeLikelihood();
+            fullLikelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", arrayLength);
+            assertEquals(fullLikelihood.calculateLogP(), logP, 0.0);
+
+            // reject half of the proposals
+            if (random.nextBoolean()) {
+                setHeights(heights);
+                likelihood.restore();
+            }
+            tree.setEverythingDirty(false);
+        }
+
+        double meanUpdatedNodes = (double) totalUpdatedNodes / steps;
+        assertTrue(meanUpdatedNodes <= depth);
+        assertTrue(meanUpdatedNodes < tree.getInternalNodeCount() / 10.0);
+    }
+
+    double[] getHeights() {
+        double[] heights = new double[tree.getNodeCount()];
+        for (Node node : tree.getNodesAsArray()) {
+            heights[node.getNr()] = node.getHeight();
+        }
+        return heights;
+    }
+
+    void setHeights(double[] heights) {
+        for (Node node : tree.getNodesAsArray()) {
+            if (node.getHeight() != heights[node.getNr()]) {
+                node.setHeight(heights[node.getNr()]);
+            }
+        }
+    }
+
+    @Test
+    public void testPartialsCacheAcrossMoves() {
+
+        // every internal node moves between 2 heights, that are compatible with any height of the other nodes
+        double[] heights = getHeights();
+        Object[][] storageOptions = {
+                {"useScaling", false},
+                {"useScaling", true},
+                {"useLogSpace", true},
+                {"useOffHeapPartials", true}
+        };
+        for (Object[] storageOption : storageOptions) {
+            setHeights(heights);
+            IncrementalLikelihood likelihood = new IncrementalLikelihood();
+            likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                    "origin", origin, "arrayLength", arrayLength, "partialsCacheSize", 1000, storageOption[0], storageOption[1]);
+            double logP = likelihood.calculateLogP();
+            tree.setEverythingDirty(false);
+
+            // a move accepted, then reverted by the next accepted move: the second calculation is only lookups
+            Node node = movableNodes.get(0);
+            likelihood.store();
+            node.setHeight(heights[node.getNr()] + 0.5);
+            likelihood.checkDirtiness();
+            likelihood.calculateLogP();
+            tree.setEverythingDirty(false);
+            likelihood.store();
+            node.setHeight(heights[node.getNr()]);
+            likelihood.checkDirtiness();
+            assertEquals(logP, likelihood.calculateLogP(), 0.0);
+            assertEquals(0, likelihood.getUpdatedNodeCount());
+            tree.setEverythingDirty(false);
+
+            for (int step = 0; step < 200; step++) {
+                likelihood.store();
+                node = movableNodes.get(random.nextInt(movableNodes.size()));
+                double oldHeight = node.getHeight();
+                node.setHeight(oldHeight == heights[node.getNr()] ? oldHeight + 0.5 : heights[node.getNr()]);
+                likelihood.checkDirtiness();
+                logP = likelihood.calculateLogP();
+
+                SciPhyTreeLikelihood fullLikelihood = new SciPhyTreeLikelihood();
+                fullLikelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                        "origin", origin, "arrayLength", arrayLength, storageOption[0], storageOption[1]);
+                assertEquals(fullLikelihood.calculateLogP(), logP, 0.0);
+
+                if (random.nextBoolean()) {
+                    node.setHeight(oldHeight);
+                    likelihood.restore();
+                }
+                tree.setEverythingDirty(false);
+            }
+            assertTrue(likelihood.getPartialsCacheHitCount() > 0);
+        }
+        setHeights(heights);
+    }
+
+    @Test
+    public void testScalingExponentSumsAcrossMoves() {
+
+        double[] heights = getHeights();
+        Object[][] storageOptions = {
+                {"useScaling", true, "partialsCacheSize", 0},
+                {"useScaling", true, "partialsCacheSize", 1000},
+                {"useFloatPartials", true, "partialsCacheSize", 0}
+        };
+        for (Object[] storageOption : storageOptions) {
+            setHeights(heights);
+            IncrementalLikelihood likelihood = new IncrementalLikelihood();
+            likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                    "origin", origin, "arrayLength", arrayLength, storageOption[0], storageOption[1], storageOption[2], storageOption[3]);
+            likelihood.calculateLogP();
+            tree.setEverythingDirty(false);
+
+            for (int step = 0; step < 200; step++) {
+                likelihood.store();
+                double[] oldHeights = getHeights();
+                proposeHeight();
+                likelihood.checkDirtiness();
+                double logP = likelihood.calculateLogP();
+
+                // the running sums of the exponents are those of a calculation from scratch
+                SciPhyTreeLikelihood fullLikelihood = new SciPhyTreeLikelihood();
+                fullLikelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                        "origin", origin, "arrayLength", arrayLength, storageOption[0], storageOption[1]);
+                assertEquals(fullLikelihood.calculateLogP(), logP, 0.0);
+                for (int i = 0; i < siteM.getCategoryCount(); i++) {
+                    assertEquals(fullLikelihood.getLogScalingFactor(0, i), likelihood.getLogScalingFactor(0, i), 0.0);
+                }
+
+                if (random.nextBoolean()) {
+                    setHeights(oldHeights);
+                    likelihood.restore();
+                }
+                tree.setEverythingDirty(false);
+            }
+            assertTrue(likelihood.getLogScalingFactor(0, 0) != 0.0);
+        }
+        setHeights(heights);
+    }
+
+    @Test
+    public void testUneditedBarcodeAcrossMoves() {
+
+        Alignment uneditedAlignment = new Alignment();
+        for (int i = 0; i < LEAF_COUNT; i++) {
+            uneditedAlignment.initByName("sequence", new Sequence("CHILD" + i, "0,0,0,0,0"), "dataType", "integer");
+        }
+        IncrementalLikelihood likelihood = new IncrementalLikelihood();
+        likelihood.initByName("data", uneditedAlignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                "origin", origin, "arrayLength", arrayLength);
+        likelihood.calculateLogP();
+        tree.setEverythingDirty(false);
+
+        for (int step = 0; step < 200; step++) {
+            likelihood.store();
+            double[] heights = getHeights();
+            proposeHeight();
+            likelihood.checkDirtiness();
+            double logP = likelihood.calculateLogP();
+
+            // the total branch length adjusted for the moved branches is that of a calculation from scratch
+            SciPhyTreeLikelihood fullLikelihood = new SciPhyTreeLikelihood();
+            fullLikelihood.initByName("data", uneditedAlignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                    "origin", origin, "arrayLength", arrayLength);
+            assertEquals(fullLikelihood.calculateLogP(), logP, 1e-12 * Math.abs(logP));
+
+            if (random.nextBoolean()) {
+                setHeights(heights);
+                likelihood.restore();
+            }
+            tree.setEverythingDirty(false);
+        }
+    }
+
+    /**
+     * Likelihood whose second site category, evaluated by a category worker, fails with an error
+     */
+    static class FailingCategoryLikelihood extends SciPhyTreeLikelihood {
+        @Override
+        protected void calculateCategoryLogLikelihoods(int categoryId) {
+            if (categoryId == 1) {
+                throw new AssertionError("category " + categoryId);
+            }
+            super.calculateCategoryLogLikelihoods(categoryId);
+        }
+    }
+
+    @Test(expected = AssertionError.class)
+    public void testErrorOfCategoryWorkerIsRethrown() {
+
+        FailingCategoryLikelihood likelihood = new FailingCategoryLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                "origin", origin, "arrayLength", arrayLength, "categoryThreads", 2);
+        likelihood.calculateLogP();
+    }
+
+    @Test
+    public void testSubtreeThreadsMatchSequentialCalculation() {
+
+        Object[][] storageOptions = {
+                {"useScaling", true},
+                {"useLogSpace", true}
+        };
+        for (Object[] storageOption : storageOptions) {
+            IncrementalLikelihood likelihood = new IncrementalLikelihood();
+            likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                    "origin", origin, "arrayLength", arrayLength, storageOption[0], storageOption[1]);
+            IncrementalLikelihood parallelLikelihood = new IncrementalLikelihood();
+            parallelLikelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                    "origin", origin, "arrayLength", arrayLength, storageOption[0], storageOption[1],
+                    "subtreeThreads", 4, "subtreeTaskSize", 4);
+            assertEquals(likelihood.calculateLogP(), parallelLikelihood.calculateLogP(), 0.0);
+            tree.setEverythingDirty(false);
+
+            // every node is computed as in the sequential calculation, so the results are the same
+            for (int step = 0; step < 200; step++) {
+                likelihood.store();
+                parallelLikelihood.store();
+                double[] heights = getHeights();
+                double oldClockRate = clockRate.getValue();
+                proposeHeight();
+                if (step % 4 == 0) {
+                    clockRate.setValue(oldClockRate * (0.9 + 0.2 * random.nextDouble()));
+                }
+                likelihood.checkDirtiness();
+                parallelLikelihood.checkDirtiness();
+                assertEquals(likelihood.calculateLogP(), parallelLikelihood.calculateLogP(), 0.0);
+                assertEquals(likelihood.getUpdatedNodeCount(), parallelLikelihood.getUpdatedNodeCount());
+
+                if (random.nextBoolean()) {
+                    setHeights(heights);
+                    clockRate.setValue(oldClockRate);
+                    likelihood.restore();
+                    parallelLikelihood.restore();
+                }
+                tree.setEverythingDirty(false);
+            }
+        }
+    }
+
+    /**
+     * Gives access to the pool of the subtree threads, and sets it up again
+     */
+    static class SubtreePoolLikelihood extends SciPhyTreeLikelihood {
+        ForkJoinPool getSubtreePool() {
+            return subtreePool;
+        }
+
+        void resetSubtreeThreads() {
+            initSubtreeThreads();
+        }
+    }
+
+    @Test
+    public void testSubtreePoolShutDownWhenReplaced() {
+
+        SubtreePoolLikelihood likelihood = new SubtreePoolLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                "origin", origin, "arrayLength", arrayLength, "useScaling", true, "subtreeThreads", 2);
+        double logP = likelihood.calculateLogP();
+        ForkJoinPool subtreePool = likelihood.getSubtreePool();
+
+        // the threads of the replaced pool do not outlive it
+        likelihood.resetSubtreeThreads();
+        assertTrue(subtreePool.isShutdown());
+        assertTrue(likelihood.getSubtreePool() != subtreePool);
+        tree.setEverythingDirty(true);
+        assertEquals(logP, likelihood.calculateLogP(), 0.0);
+    }
+
+    @Test
+    public void testContiguousCoreMatchesReferenceCore() {
+
+        for (boolean useScaling : new boolean[]{false, true}) {
+            IncrementalLikelihood likelihood = new IncrementalLikelihood();
+            likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                    "origin", origin, "arrayLength", arrayLength, "useScaling", useScaling);
+            // the cross check fails as soon as both cores disagree
+            IncrementalLikelihood contiguousLikelihood = new IncrementalLikelihood();
+            contiguousLikelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                    "origin", origin, "arrayLength", arrayLength, "useScaling", useScaling,
+                    "core", SciPhyTreeLikelihood.Core.contiguous, "crossCheckCore", true);
+            assertEquals(likelihood.calculateLogP(), contiguousLikelihood.calculateLogP(), 0.0);
+            tree.setEverythingDirty(false);
+
+            for (int step = 0; step < 200; step++) {
+                likelihood.store();
+                contiguousLikelihood.store();
+                double[] heights = getHeights();
+                proposeHeight();
+                likelihood.checkDirtiness();
+                contiguousLikelihood.checkDirtiness();
+                // same operations in the same order as the reference core
+                assertEquals(likelihood.calculateLogP(), contiguousLikelihood.calculateLogP(), 0.0);
+
+                if (random.nextBoolean()) {
+                    setHeights(heights);
+                    likelihood.restore();
+                    contiguousLikelihood.restore();
+                }
+                tree.setEverythingDirty(false);
+            }
+        }
+    }
+
+    /**
+     * Cross checks the reference core against a core that is off by 1e-6 in log likelihood
+     */
+    static class DivergentCoreLikelihood extends SciPhyTreeLikelihood {
+        @Override
+        protected void initLikelihoodCore() {
+            likelihoodCore = new CrossCheckSciPhyLikelihoodCore(new ReferenceSciPhyLikelihoodCore() {
+                @Override
+                public void calculateRootLogLikelihoods(int rootNr, int categoryId, double[][] logLikelihoods) {
+                    super.calculateRootLogLikelihoods(rootNr, categoryId, logLikelihoods);
+                    logLikelihoods[0][categoryId] += 1e-6;
+                }
+            }, new ReferenceSciPhyLikelihoodCore());
+            likelihoodCore.initialize(this);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCrossCheckFailsOnDivergentCore() {
+
+        DivergentCoreLikelihood likelihood = new DivergentCoreLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                "origin", origin, "arrayLength", arrayLength);
+        likelihood.calculateLogP();
+    }
+
+    /**
+     * Cross checks the reference core against a contiguous core that scales its partials but loses the exponents
+     */
+    static class LostExponentsLikelihood extends SciPhyTreeLikelihood {
+        @Override
+        protected void initLikelihoodCore() {
+            likelihoodCore = new CrossCheckSciPhyLikelihoodCore(new ContiguousSciPhyLikelihoodCore() {
+                @Override
+                public void initialize(SciPhyTreeLikelihood likelihood) {
+                    super.initialize(likelihood);
+                    scalingExponents = new ScalingExponents(barcodeCount, m_siteModel.getCategoryCount(), nodeCount) {
+                        @Override
+                        public int scale(double[] partials, int offset, int length, int barcode, int categoryId, int bufferIndex, int nodeNr) {
+                            super.scale(partials, offset, length, barcode, categoryId, bufferIndex, nodeNr);
+                            setExponent(barcode, categoryId, bufferIndex, nodeNr, 0);
+                            return 0;
+                        }
+                    };
+                }
+            }, new ReferenceSciPhyLikelihoodCore());
+            likelihoodCore.initialize(this);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCrossCheckFailsOnScalingOfCore() {
+
+        LostExponentsLikelihood likelihood = new LostExponentsLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                "origin", origin, "arrayLength", arrayLength, "useScaling", true);
+        likelihood.calculateLogP();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExceptionForCrossCheckOfReferenceCore() {
+
+        SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                "origin", origin, "arrayLength", arrayLength, "crossCheckCore", true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExceptionForContiguousCoreInLogSpace() {
+
+        SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                "origin", origin, "arrayLength", arrayLength, "useLogSpace", true, "core", SciPhyTreeLikelihood.Core.contiguous);
+    }
+
+    // swap the subtrees below node1 and node2, as the exchange operator does
+    static void exchange(Node node1, Node node2) {
+        Node parent1 = node1.getParent();
+        Node parent2 = node2.getParent();
+        parent1.removeChild(node1);
+        parent2.removeChild(node2);
+        parent1.addChild(node2);
+        parent2.addChild(node1);
+        parent1.makeDirty(Tree.IS_FILTHY);
+        parent2.makeDirty(Tree.IS_FILTHY);
+    }
+
+    @Test
+    public void testRestoreExchangeWithCleanNodes() {
+
+        IncrementalLikelihood likelihood = new IncrementalLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", arrayLength);
+        double logP = likelihood.calculateLogP();
+        tree.setEverythingDirty(false);
+
+        // exchange 2 leaves of different cherries
+        Node node1 = tree.getNode(0);
+        Node node2 = tree.getNode(2);
+        likelihood.store();
+        exchange(node1, node2);
+        likelihood.checkDirtiness();
+        double proposedLogP = likelihood.calculateLogP();
+        assertTrue(proposedLogP != logP);
+
+        // a restored tree does not mark its nodes
+        exchange(node2, node1);
+        tree.setEverythingDirty(false);
+        likelihood.restore();
+
+        // the partials of the parent of node1 are recalculated from its restored children
+        likelihood.store();
+        Node node = node1.getParent();
+        node.setHeight(0.5);
+        likelihood.checkDirtiness();
+        logP = likelihood.calculateLogP();
+        SciPhyTreeLikelihood fullLikelihood = new SciPhyTreeLikelihood();
+        fullLikelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", arrayLength);
+        assertEquals(fullLikelihood.calculateLogP(), logP, 1e-12 * Math.abs(logP));
+        int pathLength = 0;
+        for (Node ancestor = node; ancestor != null; ancestor = ancestor.getParent()) {
+            pathLength++;
+        }
+        assertEquals(pathLength, likelihood.getUpdatedNodeCount());
+    }
+
+    @Test
+    public void testDeepTreeOnSmallStack() throws InterruptedException {
+
+        // caterpillar tree, each internal node joins the previous one and a leaf
+        int leafCount = 2000;
+        Alignment caterpillarAlignment = new Alignment();
+        StringBuilder newick = new StringBuilder();
+        for (int i = 0; i < leafCount; i++) {
+            caterpillarAlignment.initByName("sequence", new Sequence("CHILD" + i, i % 3 == 0 ? "0,0,0" : i % 3 + ",1,0"), "dataType", "integer");
+            newick.append(i < leafCount - 1 ? "(" : "");
+        }
+        newick.append("CHILD0:1");
+        for (int i = 1; i < leafCount; i++) {
+            newick.append(",CHILD").append(i).append(":").append(i).append("):1");
+        }
+        newick.setLength(newick.length() - 2);
+        Tree caterpillar = new TreeParser();
+        caterpillar.initByName("IsLabelledNewick", true, "taxa", caterpillarAlignment, "newick", newick.toString(),
+                "adjustTipHeights", false, "offset", 0);
+
+        SciPhyTreeLikelihood logSpaceLikelihood = new SciPhyTreeLikelihood();
+        logSpaceLikelihood.initByName("data", caterpillarAlignment, "tree", caterpillar, "siteModel", siteM, "branchRateModel", clockModel,
+                "origin", new RealParameter("" + leafCount), "arrayLength", new IntegerParameter("3"), "useLogSpace", true);
+        SciPhyTreeLikelihood scaledLikelihood = new SciPhyTreeLikelihood();
+        scaledLikelihood.initByName("data", caterpillarAlignment, "tree", caterpillar, "siteModel", siteM, "branchRateModel", clockModel,
+                "origin", new RealParameter("" + leafCount), "arrayLength", new IntegerParameter("3"), "useScaling", true);
+
+        // the calculations do not recurse over the nodes, and fit in a small stack whatever the depth of the tree
+        double[] logP = new double[2];
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                logP[0] = logSpaceLikelihood.calculateLogP();
+                logP[1] = scaledLikelihood.calculateLogP();
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        }, "small stack", 128 * 1024);
+        thread.start();
+        thread.join();
+
+        assertEquals(null, failure[0]);
+        assertTrue(!Double.isInfinite(logP[0]));
+        assertEquals(logP[0], logP[1], 1e-9 * Math.abs(logP[0]));
+    }
+
+    /**
+     * Counts the reads of the partials of the nodes
+     */
+    static class CountingReadsLikelihood extends SciPhyTreeLikelihood {
+        long readCount = 0;
+
+        @Override
+        protected double[] getPartials(int barcode, int categoryId, int nodeNr, int childIndex) {
+            readCount++;
+            return super.getPartials(barcode, categoryId, nodeNr, childIndex);
+        }
+    }
+
+    @Test
+    public void testOffHeapPartialsReadOncePerNode() {
+
+        CountingReadsLikelihood likelihood = new CountingReadsLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                "origin", origin, "arrayLength", arrayLength, "useScaling", true, "useOffHeapPartials", true);
+        likelihood.readCount = 0;
+        tree.setEverythingDirty(true);
+        likelihood.calculateLogP();
+
+        // the partials of each internal node are read once to be scaled and once as a child or at the root, and not
+        // once per start state of the parent
+        long internalNodeCount = tree.getNodeCount() - tree.getLeafNodeCount();
+        assertTrue(likelihood.readCount + " reads", likelihood.readCount <= 2 * internalNodeCount * siteM.getCategoryCount());
+    }
+
+    @Test
+    public void testNoAllocationPerEvaluation() {
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        Object[][] storageOptions = {
+                {"useScaling", true},
+                {"useLogSpace", true},
+                {"useFloatPartials", true},
+                {"useOffHeapPartials", true}
+        };
+        for (Object[] storageOption : storageOptions) {
+            IncrementalLikelihood likelihood = new IncrementalLikelihood();
+            likelihood.initByName("data", alignment, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel,
+                    "origin", origin, "arrayLength", arrayLength, storageOption[0], storageOption[1]);
+            likelihood.calculateLogP();
+            tree.setEverythingDirty(false);
+
+            // warm-up, then measure the bytes allocated by the evaluations only
+            int warmUpSteps = 2000;
+            int steps = 500;
+            long allocatedBytes = 0;
+            for (int step = 0; step < warmUpSteps + steps; step++) {
+                likelihood.store();
+                double[] heights = getHeights();
+                double oldClockRate = clockRate.getValue();
+                proposeHeight();
+                if (step % 2 == 0) {
+                    // all branch lengths change, and so all Poisson tables
+                    clockRate.setValue(oldClockRate * (0.9 + 0.2 * random.nextDouble()));
+                }
+                likelihood.checkDirtiness();
+
+                long before = threadBean.getThreadAllocatedBytes(threadId);
+                likelihood.calculateLogP();
+                long after = threadBean.getThreadAllocatedBytes(threadId);
+                if (step >= warmUpSteps) {
+                    allocatedBytes += after - before;
+                }
+
+                if (random.nextBoolean()) {
+                    setHeights(heights);
+                    clockRate.setValue(oldClockRate);
+                    likelihood.restore();
+                }
+                tree.setEverythingDirty(false);
+            }
+
+            double allocatedBytesPerEvaluation = (double) allocatedBytes / steps;
+            assertTrue(storageOption[0] + ": " + allocatedBytesPerEvaluation + " bytes allocated per evaluation",
+                    allocatedBytesPerEvaluation < 16);
+        }
+    }
+
+}
@@ -15,7 +15,6 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.Arrays;
-import java.util.Hashtable;
 import java.util.List;
 import static junit.framework.Assert.assertEquals;
 import static org.junit.Assert.*;
@@ -280,25 +279,22 @@ public class SciPhyLikelihoodTest {
 
         //test ancestral states sets calculations
         likelihood.calculateLogP();
-        Hashtable<Integer, List<List<Integer>>> statesDictionary = likelihood.ancestralStates;
 
         //first calculate states dictionary
         //manually create states:
         List<Integer> allele0 = Arrays.asList(0, 0, 0, 0, 0);
 
-        assertEquals(3, statesDictionary.size());
-
         //1st leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(0)).size(), 1);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(0).size(), 1);
+        assertTrue(likelihood.getAncestralStates(0).contains(allele0));
 
         //2nd leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(1)).size(), 1);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(1).size(), 1);
+        assertTrue(likelihood.getAncestralStates(1).contains(allele0));
 
         //root node
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(2)).size(), 1);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(2).size(), 1);
+        assertTrue(likelihood.getAncestralStates(2).contains(allele0));
 
     }
 
@@ -343,7 +339,6 @@ public class SciPhyLikelihoodTest {
 
         //test ancestral states sets calculations
         likelihood.calculateLogP();
-        Hashtable<Integer, List<List<Integer>>> statesDictionary = likelihood.ancestralStates;
 
 
         //first calculate states dictionary
@@ -353,26 +348,24 @@ public class SciPhyLikelihoodTest {
         List<Integer> allele1 = Arrays.asList(1, 0, 0, 0, 0);
         List<Integer> allele0 = Arrays.asList(0, 0, 0, 0, 0);
 
-        assertEquals(3, statesDictionary.size());
-
         //1st leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(0)).size(), 4);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele123));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele12));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele1));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(0).size(), 4);
+        assertTrue(likelihood.getAncestralStates(0).contains(allele123));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele12));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele1));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele0));
 
         //2nd leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(1)).size(), 3);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele12));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele1));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(1).size(), 3);
+        assertTrue(likelihood.getAncestralStates(1).contains(allele12));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele1));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele0));
 
         //root node
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(2)).size(), 3);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele12));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele1));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(2).size(), 3);
+        assertTrue(likelihood.getAncestralStates(2).contains(allele12));
+        assertTrue(likelihood.getAncestralStates(2).contains(allele1));
+        assertTrue(likelihood.getAncestralStates(2).contains(allele0));
 
 
     }
@@ -419,7 +412,6 @@ public class SciPhyLikelihoodTest {
 
         //test ancestral states sets calculations
         likelihood.calculateLogP();
-        Hashtable<Integer, List<List<Integer>>> statesDictionary = likelihood.ancestralStates;
 
 
         //first calculate states dictionary
@@ -430,23 +422,21 @@ public class SciPhyLikelihoodTest {
         List<Integer> allele1 = Arrays.asList(1, 0, 0, 0, 0);
         List<Integer> allele0 = Arrays.asList(0, 0, 0, 0, 0);
 
-        assertEquals(3, statesDictionary.size());
-
         //1st leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(0)).size(), 3);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele12));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele1));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(0).size(), 3);
+        assertTrue(likelihood.getAncestralStates(0).contains(allele12));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele1));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele0));
 
         //2nd leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(1)).size(), 3);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele21));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele2));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(1).size(), 3);
+        assertTrue(likelihood.getAncestralStates(1).contains(allele21));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele2));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele0));
 
         //root node
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(2)).size(), 1);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(2).size(), 1);
+        assertTrue(likelihood.getAncestralStates(2).contains(allele0));
 
 
     }
@@ -493,7 +483,6 @@ public class SciPhyLikelihoodTest {
 
         //test ancestral states sets calculations
         likelihood.calculateLogP();
-        Hashtable<Integer, List<List<Integer>>> statesDictionary = likelihood.ancestralStates;
 
 
         //first calculate states dictionary
@@ -505,24 +494,22 @@ public class SciPhyLikelihoodTest {
         List<Integer> allele1 = Arrays.asList(1, 0, 0, 0, 0);
         List<Integer> allele0 = Arrays.asList(0, 0, 0, 0, 0);
 
-        assertEquals(3, statesDictionary.size());
-
         //1st leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(0)).size(), 3);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele12));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele1));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(0).size(), 3);
+        assertTrue(likelihood.getAncestralStates(0).contains(allele12));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele1));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele0));
 
         //2nd leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(1)).size(), 4);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele211));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele21));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele2));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(1).size(), 4);
+        assertTrue(likelihood.getAncestralStates(1).contains(allele211));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele21));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele2));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele0));
 
         //root node
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(2)).size(), 1);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(2).size(), 1);
+        assertTrue(likelihood.getAncestralStates(2).contains(allele0));
 
 
     }
@@ -569,7 +556,6 @@ public class SciPhyLikelihoodTest {
 
         //test ancestral states sets calculations
         likelihood.calculateLogP();
-        Hashtable<Integer, List<List<Integer>>> statesDictionary = likelihood.ancestralStates;
 
 
         //first calculate states dictionary
@@ -580,23 +566,21 @@ public class SciPhyLikelihoodTest {
         List<Integer> allele1 = Arrays.asList(1, 0, 0, 0, 0);
         List<Integer> allele0 = Arrays.asList(0, 0, 0, 0, 0);
 
-        assertEquals(3, statesDictionary.size());
-
         //1st leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(0)).size(), 2);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele1));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(0).size(), 2);
+        assertTrue(likelihood.getAncestralStates(0).contains(allele1));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele0));
 
 
         //2nd leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(1)).size(), 3);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele31));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele3));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(1).size(), 3);
+        assertTrue(likelihood.getAncestralStates(1).contains(allele31));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele3));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele0));
 
         //root node
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(2)).size(), 1);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(2).size(), 1);
+        assertTrue(likelihood.getAncestralStates(2).contains(allele0));
 
 
     }
@@ -648,8 +632,6 @@ public class SciPhyLikelihoodTest {
 
         //calculate states dictionary
         likelihood.calculateLogP();
-        Hashtable<Integer, List<List<Integer>>> statesDictionary = likelihood.ancestralStates;
-        assertEquals(5, statesDictionary.size());
 
         //Manually create states
         List<Integer> allele12 = Arrays.asList(1, 2, 0, 0, 0);
@@ -661,31 +643,31 @@ public class SciPhyLikelihoodTest {
 
         //check the ancestral dictionaries
         //todo find a way to extract node numbers in a way that we know their position in the tree
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(0)).size(), 3);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele12));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele1));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(0).size(), 3);
+        assertTrue(likelihood.getAncestralStates(0).contains(allele12));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele1));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele0));
 
         //2nd leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(1)).size(), 3);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele11));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele1));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(1).size(), 3);
+        assertTrue(likelihood.getAncestralStates(1).contains(allele11));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele1));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele0));
 
         // node c
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(2)).size(), 3);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele21));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele2));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(2).size(), 3);
+        assertTrue(likelihood.getAncestralStates(2).contains(allele21));
+        assertTrue(likelihood.getAncestralStates(2).contains(allele2));
+        assertTrue(likelihood.getAncestralStates(2).contains(allele0));
 
         //internal node between a and b
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(3)).size(), 2);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(3)).contains(allele1));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(3)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(3).size(), 2);
+        assertTrue(likelihood.getAncestralStates(3).contains(allele1));
+        assertTrue(likelihood.getAncestralStates(3).contains(allele0));
 
         //root node a/b/c
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(4)).size(), 1);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(4)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(4).size(), 1);
+        assertTrue(likelihood.getAncestralStates(4).contains(allele0));
 
 
     }
@@ -736,7 +718,7 @@ public class SciPhyLikelihoodTest {
         
 
         //initialise partialLikelihoods
-        likelihood.partialLikelihoods = new double[2][tree1.getNodeCount()][];
+        likelihood.partialLikelihoods = new double[1][1][2][tree1.getNodeCount()][];
 
         //Manually calc the likelihood for that tree:
 
@@ -812,7 +794,7 @@ public class SciPhyLikelihoodTest {
 
 
         //initialise partialLikelihoods
-        likelihood.partialLikelihoods = new double[2][tree1.getNodeCount()][];
+        likelihood.partialLikelihoods = new double[1][1][2][tree1.getNodeCount()][];
 
         //Manually calc the likelihood for that tree:
 
@@ -885,7 +867,7 @@ public class SciPhyLikelihoodTest {
 
 
         //initialise partialLikelihoods
-        likelihood.partialLikelihoods = new double[2][tree1.getNodeCount()][];
+        likelihood.partialLikelihoods = new double[1][1][2][tree1.getNodeCount()][];
 
         //Manually calc the likelihood for that tree:
 
@@ -954,7 +936,7 @@ public class SciPhyLikelihoodTest {
 
 
         //initialise partialLikelihoods
-        likelihood.partialLikelihoods = new double[2][tree1.getNodeCount()][];
+        likelihood.partialLikelihoods = new double[1][1][2][tree1.getNodeCount()][];
 
         //Manually calc the likelihood for that tree:
 
@@ -1032,7 +1014,7 @@ public class SciPhyLikelihoodTest {
 
 
         //initialise partialLikelihoods
-        likelihood.partialLikelihoods = new double[2][tree1.getNodeCount()][];
+        likelihood.partialLikelihoods = new double[1][1][2][tree1.getNodeCount()][];
 
         //Manually calc the likelihood for that tree:
 
@@ -1061,4 +1043,268 @@ public class SciPhyLikelihoodTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testLikelihoodParallelCategories() {
+
+        // The likelihood of the categories evaluated on separate threads is the same as when evaluated in sequence
+        String newick = "((CHILD1:1,CHILD2:1):1,(CHILD3:1.5,CHILD4:1.5):0.5)";
+        Alignment alignment = new Alignment();
+        alignment.initByName("sequence", new Sequence("CHILD1", "1,2,0,0,0"), "dataType", "integer");
+        alignment.initByName("sequence", new Sequence("CHILD2", "1,1,0,0,0"), "dataType", "integer");
+        alignment.initByName("sequence", new Sequence("CHILD3", "2,1,0,0,0"), "dataType", "integer");
+        alignment.initByName("sequence", new Sequence("CHILD4", "2,1,1,2,1"), "dataType", "integer");
+
+        Tree tree1 = new TreeParser();
+        tree1.initByName("IsLabelledNewick", true, "taxa", alignment, "newick",
+                newick,
+                "adjustTipHeights", false, "offset", 0);
+
+        SciPhySubstitutionModel substitutionModel = new SciPhySubstitutionModel();
+        RealParameter editprobs = new RealParameter("0.8 0.2");
+        RealParameter stateFrequencies = new RealParameter("1.0 0 0");
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", stateFrequencies, "estimate", false);
+        substitutionModel.initByName("editProbabilities", editprobs, "frequencies", frequencies);
+
+        //site model with 4 gamma categories
+        SiteModel siteM = new SiteModel();
+        siteM.initByName("gammaCategoryCount", 4, "shape", new RealParameter("0.5"), "substModel", substitutionModel);
+
+        RealParameter meanRate = new RealParameter("0.5");
+        StrictClockModel clockModel = new StrictClockModel();
+        clockModel.initByName("clock.rate", meanRate);
+        RealParameter origin = new RealParameter("4");
+        IntegerParameter arrayLength = new IntegerParameter("5");
+
+        SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", arrayLength);
+        SciPhyTreeLikelihood parallelLikelihood = new SciPhyTreeLikelihood();
+        parallelLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", arrayLength,
+                "categoryThreads", 3);
+
+        double LogPSequential = likelihood.calculateLogP();
+        double LogPParallel = parallelLikelihood.calculateLogP();
+        assertEquals(LogPSequential, LogPParallel);
+
+    }
+
+    @Test
+    public void testLikelihoodLogSpace() {
+
+        // The likelihood with partials kept in log space is the same as with linear partials
+        String newick = "((CHILD1:1,CHILD2:1):1,(CHILD3:1.5,CHILD4:1.5):0.5)";
+        Alignment alignment = new Alignment();
+        alignment.initByName("sequence", new Sequence("CHILD1", "1,2,0,0,0"), "dataType", "integer");
+        alignment.initByName("sequence", new Sequence("CHILD2", "1,1,0,0,0"), "dataType", "integer");
+        alignment.initByName("sequence", new Sequence("CHILD3", "2,1,0,0,0"), "dataType", "integer");
+        alignment.initByName("sequence", new Sequence("CHILD4", "2,1,1,2,1"), "dataType", "integer");
+
+        Tree tree1 = new TreeParser();
+        tree1.initByName("IsLabelledNewick", true, "taxa", alignment, "newick",
+                newick,
+                "adjustTipHeights", false, "offset", 0);
+
+        SciPhySubstitutionModel substitutionModel = new SciPhySubstitutionModel();
+        RealParameter editprobs = new RealParameter("0.8 0.2");
+        RealParameter stateFrequencies = new RealParameter("1.0 0 0");
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", stateFrequencies, "estimate", false);
+        substitutionModel.initByName("editProbabilities", editprobs, "frequencies", frequencies);
+
+        SiteModel siteM = new SiteModel();
+        siteM.initByName("gammaCategoryCount", 4, "shape", new RealParameter("0.5"), "substModel", substitutionModel);
+
+        RealParameter meanRate = new RealParameter("0.5");
+        StrictClockModel clockModel = new StrictClockModel();
+        clockModel.initByName("clock.rate", meanRate);
+        IntegerParameter arrayLength = new IntegerParameter("5");
+
+        // with and without origin
+        SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "origin", new RealParameter("4"), "arrayLength", arrayLength);
+        SciPhyTreeLikelihood logSpaceLikelihood = new SciPhyTreeLikelihood();
+        logSpaceLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "origin", new RealParameter("4"), "arrayLength", arrayLength,
+                "useLogSpace", true);
+        assertEquals(likelihood.calculateLogP(), logSpaceLikelihood.calculateLogP(), 1e-12);
+
+        likelihood = new SciPhyTreeLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "arrayLength", arrayLength);
+        logSpaceLikelihood = new SciPhyTreeLikelihood();
+        logSpaceLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "arrayLength", arrayLength,
+                "useLogSpace", true);
+        assertEquals(likelihood.calculateLogP(), logSpaceLikelihood.calculateLogP(), 1e-12);
+    }
+
+    @Test
+    public void testLikelihoodLogSpaceLargeTree() {
+
+        // On a large tree the linear partials underflow, the partials in log space give the scaled likelihood
+        int leafCount = 512;
+        Alignment alignment = new Alignment();
+        for (int i = 0; i < leafCount; i++) {
+            alignment.initByName("sequence", new Sequence("CHILD" + i, (1 + i % 2) + "," + (1 + (i / 2) % 2) + ",0,0,0"), "dataType", "integer");
+        }
+        StringBuilder newick = new StringBuilder("CHILD0:1");
+        for (int i = 1; i < leafCount; i++) {
+            newick.insert(0, "(").append(",CHILD").append(i).append(":").append(i).append("):1");
+        }
+        newick.setLength(newick.length() - 2);
+
+        Tree tree1 = new TreeParser();
+        tree1.initByName("IsLabelledNewick", true, "taxa", alignment, "newick",
+                newick.toString(),
+                "adjustTipHeights", false, "offset", 0);
+
+        SciPhySubstitutionModel substitutionModel = new SciPhySubstitutionModel();
+        RealParameter stateFrequencies = new RealParameter("1.0 0 0");
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", stateFrequencies, "estimate", false);
+        substitutionModel.initByName("editProbabilities", new RealParameter("0.8 0.2"), "frequencies", frequencies);
+
+        SiteModel siteM = new SiteModel();
+        siteM.initByName("gammaCategoryCount", 0, "substModel", substitutionModel);
+
+        StrictClockModel clockModel = new StrictClockModel();
+        clockModel.initByName("clock.rate", new RealParameter("0.01"));
+        IntegerParameter arrayLength = new IntegerParameter("5");
+
+        SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "arrayLength", arrayLength);
+        SciPhyTreeLikelihood scaledLikelihood = new SciPhyTreeLikelihood();
+        scaledLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "arrayLength", arrayLength,
+                "useScaling", true);
+        SciPhyTreeLikelihood logSpaceLikelihood = new SciPhyTreeLikelihood();
+        logSpaceLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "arrayLength", arrayLength,
+                "useLogSpace", true);
+
+        double logPScaled = scaledLikelihood.calculateLogP();
+        double logPLogSpace = logSpaceLikelihood.calculateLogP();
+        assertEquals(Double.NEGATIVE_INFINITY, likelihood.calculateLogP());
+        assertTrue(logPLogSpace < -708);
+        assertEquals(logPScaled, logPLogSpace, 1e-9 * Math.abs(logPScaled));
+    }
+
+    @Test
+    public void testLikelihoodOffHeapPartials() {
+
+        // The likelihood with partials stored off heap is the same as with partials on the heap
+        String newick = "((CHILD1:1,CHILD2:1):1,(CHILD3:1.5,CHILD4:1.5):0.5)";
+        Alignment alignment = new Alignment();
+        alignment.initByName("sequence", new Sequence("CHILD1", "1,2,0,0,0"), "dataType", "integer");
+        alignment.initByName("sequence", new Sequence("CHILD2", "1,1,0,0,0"), "dataType", "integer");
+        alignment.initByName("sequence", new Sequence("CHILD3", "2,1,0,0,0"), "dataType", "integer");
+        alignment.initByName("sequence", new Sequence("CHILD4", "2,1,1,2,1"), "dataType", "integer");
+
+        Tree tree1 = new TreeParser();
+        tree1.initByName("IsLabelledNewick", true, "taxa", alignment, "newick",
+                newick,
+                "adjustTipHeights", false, "offset", 0);
+
+        SciPhySubstitutionModel substitutionModel = new SciPhySubstitutionModel();
+        RealParameter editprobs = new RealParameter("0.8 0.2");
+        RealParameter stateFrequencies = new RealParameter("1.0 0 0");
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", stateFrequencies, "estimate", false);
+        substitutionModel.initByName("editProbabilities", editprobs, "frequencies", frequencies);
+
+        SiteModel siteM = new SiteModel();
+        siteM.initByName("gammaCategoryCount", 4, "shape", new RealParameter("0.5"), "substModel", substitutionModel);
+
+        RealParameter meanRate = new RealParameter("0.5");
+        StrictClockModel clockModel = new StrictClockModel();
+        clockModel.initByName("clock.rate", meanRate);
+        IntegerParameter arrayLength = new IntegerParameter("5");
+
+        for (boolean useScaling : new boolean[]{false, true}) {
+            SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+            likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "origin", new RealParameter("4"), "arrayLength", arrayLength,
+                    "useScaling", useScaling);
+            SciPhyTreeLikelihood offHeapLikelihood = new SciPhyTreeLikelihood();
+            offHeapLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "origin", new RealParameter("4"), "arrayLength", arrayLength,
+                    "useScaling", useScaling, "useOffHeapPartials", true);
+            assertEquals(likelihood.calculateLogP(), offHeapLikelihood.calculateLogP());
+        }
+
+        SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "arrayLength", arrayLength);
+        SciPhyTreeLikelihood offHeapLikelihood = new SciPhyTreeLikelihood();
+        offHeapLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "arrayLength", arrayLength,
+                "useOffHeapPartials", true);
+        assertEquals(likelihood.calculateLogP(), offHeapLikelihood.calculateLogP());
+    }
+
+    @Test
+    public void testLikelihoodEstimatedOrigin() {
+
+        // barcodes of 10 sites, the origin changes after the first calculation
+        Alignment alignment = new Alignment();
+        alignment.initByName("sequence", new Sequence("CHILD1", "1,2,1,1,2,0,0,0,0,0"), "dataType", "integer");
+        alignment.initByName("sequence", new Sequence("CHILD2", "1,2,1,2,0,0,0,0,0,0"), "dataType", "integer");
+        alignment.initByName("sequence", new Sequence("CHILD3", "2,1,1,1,1,1,2,1,1,1"), "dataType", "integer");
+
+        Tree tree1 = new TreeParser();
+        tree1.initByName("IsLabelledNewick", true, "taxa", alignment, "newick",
+                "((CHILD1:1,CHILD2:1):1,CHILD3:2)",
+                "adjustTipHeights", false, "offset", 0);
+
+        SciPhySubstitutionModel substitutionModel = new SciPhySubstitutionModel();
+        RealParameter stateFrequencies = new RealParameter("1.0 0 0");
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", stateFrequencies, "estimate", false);
+        substitutionModel.initByName("editProbabilities", new RealParameter("0.8 0.2"), "frequencies", frequencies);
+
+        SiteModel siteM = new SiteModel();
+        siteM.initByName("gammaCategoryCount", 4, "shape", new RealParameter("0.5"), "substModel", substitutionModel);
+
+        RealParameter meanRate = new RealParameter("1.5");
+        StrictClockModel clockModel = new StrictClockModel();
+        clockModel.initByName("clock.rate", meanRate);
+        RealParameter origin = new RealParameter("3");
+        IntegerParameter arrayLength = new IntegerParameter("10");
+
+        SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", arrayLength);
+        double logP = likelihood.calculateLogP();
+
+        likelihood.store();
+        origin.setValue(4.5);
+        double proposedLogP = likelihood.calculateLogP();
+
+        SciPhyTreeLikelihood fullLikelihood = new SciPhyTreeLikelihood();
+        fullLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "origin", new RealParameter("4.5"), "arrayLength", arrayLength);
+        assertEquals(fullLikelihood.calculateLogP(), proposedLogP);
+        assertTrue(proposedLogP != logP);
+
+        origin.setValue(3.0);
+        likelihood.restore();
+        assertEquals(logP, likelihood.calculateLogP());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExceptionForScalingInLogSpace() {
+
+        Alignment alignment = new Alignment();
+        alignment.initByName("sequence", new Sequence("CHILD1", "1,2,0,0,0"), "dataType", "integer");
+        alignment.initByName("sequence", new Sequence("CHILD2", "1,1,0,0,0"), "dataType", "integer");
+        alignment.initByName("sequence", new Sequence("CHILD3", "2,1,0,0,0"), "dataType", "integer");
+
+        Tree tree1 = new TreeParser();
+        tree1.initByName("IsLabelledNewick", true, "taxa", alignment, "newick",
+                "((CHILD1:1,CHILD2:1):1,CHILD3:2)",
+                "adjustTipHeights", false, "offset", 0);
+
+        SciPhySubstitutionModel substitutionModel = new SciPhySubstitutionModel();
+        RealParameter stateFrequencies = new RealParameter("1.0 0 0");
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", stateFrequencies, "estimate", false);
+        substitutionModel.initByName("editProbabilities", new RealParameter("0.8 0.2"), "frequencies", frequencies);
+
+        SiteModel siteM = new SiteModel();
+        siteM.initByName("gammaCategoryCount", 0, "substModel", substitutionModel);
+
+        SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "arrayLength", new IntegerParameter("5"),
+                "useScaling", true, "useLogSpace", true);
+    }
+
+}
@@ -0,0 +1,299 @@
+package sciphy;
+
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.branchratemodel.StrictClockModel;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import sciphy.evolution.likelihood.SciPhyMultiBarcodeTreeLikelihood;
+import sciphy.evolution.likelihood.SciPhyTreeLikelihood;
+import sciphy.evolution.likelihood.ThreadedSciPhyTreeLikelihood;
+import sciphy.evolution.substitutionmodel.SciPhySubstitutionModel;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import static junit.framework.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SciPhyMultiBarcodeLikelihoodTest {
+
+    Alignment alignment1, alignment2;
+    Tree tree;
+    SiteModel siteM;
+    StrictClockModel clockModel;
+    RealParameter clockRate;
+    RealParameter origin;
+
+    @Before
+    public void setUp() {
+        // 2 target barcodes of different lengths, the taxa of the second one are in a different order
+        alignment1 = new Alignment();
+        alignment1.initByName("sequence", new Sequence("CHILD1", "1,2,0,0,0"), "dataType", "integer");
+        alignment1.initByName("sequence", new Sequence("CHILD2", "1,2,1,0,0"), "dataType", "integer");
+        alignment1.initByName("sequence", new Sequence("CHILD3", "2,0,0,0,0"), "dataType", "integer");
+        alignment1.setID("barcode1");
+
+        alignment2 = new Alignment();
+        alignment2.initByName("sequence", new Sequence("CHILD3", "1,1,0,0"), "dataType", "integer");
+        alignment2.initByName("sequence", new Sequence("CHILD1", "2,0,0,0"), "dataType", "integer");
+        alignment2.initByName("sequence", new Sequence("CHILD2", "2,1,2,2"), "dataType", "integer");
+        alignment2.setID("barcode2");
+
+        tree = new TreeParser();
+        tree.initByName("IsLabelledNewick", true, "taxa", alignment1, "newick",
+                "((CHILD1:2,CHILD2:2):3,CHILD3:5)",
+                "adjustTipHeights", false, "offset", 0);
+
+        SciPhySubstitutionModel substitutionModel = new SciPhySubstitutionModel();
+        RealParameter editprobs = new RealParameter("0.8 0.2");
+        RealParameter stateFrequencies = new RealParameter("1.0 0 0");
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", stateFrequencies, "estimate", false);
+        substitutionModel.initByName("editProbabilities", editprobs, "frequencies", frequencies);
+
+        siteM = new SiteModel();
+        siteM.initByName("gammaCategoryCount", 0, "substModel", substitutionModel);
+
+        clockModel = new StrictClockModel();
+        clockRate = new RealParameter("0.5");
+        clockModel.initByName("clock.rate", clockRate);
+        origin = new RealParameter("6");
+    }
+
+    @Test
+    public void testLikelihoodMatchesOneLikelihoodPerBarcode() {
+
+        SciPhyTreeLikelihood likelihood1 = new SciPhyTreeLikelihood();
+        likelihood1.initByName("data", alignment1, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", new IntegerParameter("5"));
+        SciPhyTreeLikelihood likelihood2 = new SciPhyTreeLikelihood();
+        likelihood2.initByName("data", alignment2, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", new IntegerParameter("4"));
+
+        SciPhyMultiBarcodeTreeLikelihood likelihood = new SciPhyMultiBarcodeTreeLikelihood();
+        likelihood.initByName("alignment", Arrays.asList(alignment1, alignment2), "tree", tree, "siteModel", siteM,
+                "branchRateModel", clockModel, "origin", origin, "arrayLength", new IntegerParameter("5 4"));
+
+        double logP1 = likelihood1.calculateLogP();
+        double logP2 = likelihood2.calculateLogP();
+        double logP = likelihood.calculateLogP();
+
+        assertEquals(2, likelihood.getBarcodeCount());
+        assertEquals(logP1, likelihood.getBarcodeLogP(0), 1e-12);
+        assertEquals(logP2, likelihood.getBarcodeLogP(1), 1e-12);
+        assertEquals(logP1 + logP2, logP, 1e-12);
+    }
+
+    @Test
+    public void testThreadedLikelihoodMatchesMultiBarcodeLikelihood() {
+
+        Alignment alignment3 = new Alignment();
+        alignment3.initByName("sequence", new Sequence("CHILD2", "0,0,0,0,0"), "dataType", "integer");
+        alignment3.initByName("sequence", new Sequence("CHILD1", "2,2,0,0,0"), "dataType", "integer");
+        alignment3.initByName("sequence", new Sequence("CHILD3", "2,1,1,1,1"), "dataType", "integer");
+
+        SciPhyMultiBarcodeTreeLikelihood likelihood = new SciPhyMultiBarcodeTreeLikelihood();
+        likelihood.initByName("alignment", Arrays.asList(alignment1, alignment2, alignment3), "tree", tree, "siteModel", siteM,
+                "branchRateModel", clockModel, "origin", origin, "arrayLength", new IntegerParameter("5 4 5"));
+
+        ThreadedSciPhyTreeLikelihood threadedLikelihood = new ThreadedSciPhyTreeLikelihood();
+        threadedLikelihood.initByName("alignment", Arrays.asList(alignment1, alignment2, alignment3), "tree", tree, "siteModel", siteM,
+                "branchRateModel", clockModel, "origin", origin, "arrayLength", new IntegerParameter("5 4 5"), "threads", 2);
+
+        double logP = likelihood.calculateLogP();
+        double threadedLogP = threadedLikelihood.calculateLogP();
+
+        assertEquals(3, threadedLikelihood.getBarcodeCount());
+        for (int b = 0; b < 3; b++) {
+            assertEquals(likelihood.getBarcodeLogP(b), threadedLikelihood.getBarcodeLogP(b), 1e-12);
+        }
+        assertEquals(logP, threadedLogP, 1e-12);
+
+        // a rejected clock rate proposal is restored in every group of barcodes
+        threadedLikelihood.store();
+        clockRate.setValue(0.7);
+        double proposedLogP = threadedLikelihood.calculateLogP();
+        clockRate.setValue(0.5);
+        threadedLikelihood.restore();
+
+        assertTrue(proposedLogP != logP);
+        for (int b = 0; b < 3; b++) {
+            assertEquals(likelihood.getBarcodeLogP(b), threadedLikelihood.getBarcodeLogP(b), 1e-12);
+        }
+    }
+
+    /**
+     * Threaded likelihood whose group of barcodes can be replaced by one that fails with an error
+     */
+    static class FailingThreadedLikelihood extends ThreadedSciPhyTreeLikelihood {
+        void failGroup(int group) {
+            barcodeLikelihoods[group] = new SciPhyMultiBarcodeTreeLikelihood() {
+                @Override
+                public double calculateLogP() {
+                    throw new StackOverflowError();
+                }
+            };
+        }
+    }
+
+    @Test(expected = StackOverflowError.class)
+    public void testErrorOfWorkerIsRethrown() {
+
+        FailingThreadedLikelihood threadedLikelihood = new FailingThreadedLikelihood();
+        threadedLikelihood.initByName("alignment", Arrays.asList(alignment1, alignment2), "tree", tree, "siteModel", siteM,
+                "branchRateModel", clockModel, "origin", origin, "arrayLength", new IntegerParameter("5 4"), "threads", 2);
+        // the second group is evaluated by a worker thread
+        threadedLikelihood.failGroup(1);
+        threadedLikelihood.calculateLogP();
+    }
+
+    /**
+     * Gives access to the likelihoods of the groups of barcodes
+     */
+    static class GroupedThreadedLikelihood extends ThreadedSciPhyTreeLikelihood {
+        SciPhyMultiBarcodeTreeLikelihood getGroup(int group) {
+            return barcodeLikelihoods[group];
+        }
+    }
+
+    @Test
+    public void testThreadedLikelihoodForwardsAllInputs() {
+
+        GroupedThreadedLikelihood threadedLikelihood = new GroupedThreadedLikelihood();
+        threadedLikelihood.initByName("alignment", Arrays.asList(alignment1, alignment2), "tree", tree, "siteModel", siteM,
+                "branchRateModel", clockModel, "origin", origin, "arrayLength", new IntegerParameter("5 4"), "threads", 2,
+                "useScaling", true, "core", SciPhyTreeLikelihood.Core.contiguous, "crossCheckCore", true,
+                "useVectorKernel", true, "categoryThreads", 2, "subtreeTaskSize", 8);
+
+        SciPhyMultiBarcodeTreeLikelihood likelihood = new SciPhyMultiBarcodeTreeLikelihood();
+        likelihood.initByName("alignment", Arrays.asList(alignment1, alignment2), "tree", tree, "siteModel", siteM,
+                "branchRateModel", clockModel, "origin", origin, "arrayLength", new IntegerParameter("5 4"));
+        assertEquals(likelihood.calculateLogP(), threadedLikelihood.calculateLogP(), 1e-12);
+
+        for (int group = 0; group < 2; group++) {
+            SciPhyMultiBarcodeTreeLikelihood groupLikelihood = threadedLikelihood.getGroup(group);
+            assertEquals(tree, groupLikelihood.treeInput.get());
+            assertEquals(origin, groupLikelihood.originTimeInput.get());
+            assertEquals(Boolean.TRUE, groupLikelihood.useScalingInput.get());
+            assertEquals(SciPhyTreeLikelihood.Core.contiguous, groupLikelihood.coreInput.get());
+            assertEquals(Boolean.TRUE, groupLikelihood.crossCheckCoreInput.get());
+            assertEquals(Boolean.TRUE, groupLikelihood.useVectorKernelInput.get());
+            assertEquals(Integer.valueOf(2), groupLikelihood.categoryThreadsInput.get());
+            assertEquals(Integer.valueOf(8), groupLikelihood.subtreeTaskSizeInput.get());
+        }
+    }
+
+    @Test
+    public void testUneditedBarcodeInClosedForm() {
+
+        Alignment uneditedAlignment = new Alignment();
+        uneditedAlignment.initByName("sequence", new Sequence("CHILD1", "0,0,0"), "dataType", "integer");
+        uneditedAlignment.initByName("sequence", new Sequence("CHILD2", "0,0,0"), "dataType", "integer");
+        uneditedAlignment.initByName("sequence", new Sequence("CHILD3", "0,0,0"), "dataType", "integer");
+
+        SciPhyTreeLikelihood likelihood1 = new SciPhyTreeLikelihood();
+        likelihood1.initByName("data", alignment1, "tree", tree, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", new IntegerParameter("5"));
+        SciPhyMultiBarcodeTreeLikelihood likelihood = new SciPhyMultiBarcodeTreeLikelihood();
+        likelihood.initByName("alignment", Arrays.asList(alignment1, uneditedAlignment), "tree", tree, "siteModel", siteM,
+                "branchRateModel", clockModel, "origin", origin, "arrayLength", new IntegerParameter("5 3"));
+
+        // no edit on the branches of total length 2 + 2 + 3 + 5 and on the stem of length 1
+        double logP = likelihood.calculateLogP();
+        assertEquals(likelihood1.calculateLogP(), likelihood.getBarcodeLogP(0), 1e-12);
+        assertEquals(-13 * 0.5, likelihood.getBarcodeLogP(1), 1e-12);
+        assertEquals(likelihood.getBarcodeLogP(0) + likelihood.getBarcodeLogP(1), logP, 1e-12);
+
+        likelihood.store();
+        clockRate.setValue(0.7);
+        likelihood.calculateLogP();
+        assertEquals(-13 * 0.7, likelihood.getBarcodeLogP(1), 1e-12);
+        clockRate.setValue(0.5);
+        likelihood.restore();
+        assertEquals(-13 * 0.5, likelihood.getBarcodeLogP(1), 1e-12);
+    }
+
+    @Test
+    public void testEditOfProbabilityZeroSkipsAllBarcodes() {
+
+        // only the first edit has a positive probability, the first barcode is feasible but not the second
+        Alignment feasibleAlignment = new Alignment();
+        feasibleAlignment.initByName("sequence", new Sequence("CHILD1", "1,1,0,0,0"), "dataType", "integer");
+        feasibleAlignment.initByName("sequence", new Sequence("CHILD2", "1,0,0,0,0"), "dataType", "integer");
+        feasibleAlignment.initByName("sequence", new Sequence("CHILD3", "0,0,0,0,0"), "dataType", "integer");
+
+        SciPhySubstitutionModel substitutionModel = new SciPhySubstitutionModel();
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", new RealParameter("1.0 0 0"), "estimate", false);
+        substitutionModel.initByName("editProbabilities", new RealParameter("1.0 0.0"), "frequencies", frequencies);
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("gammaCategoryCount", 0, "substModel", substitutionModel);
+
+        SciPhyTreeLikelihood feasibleLikelihood = new SciPhyTreeLikelihood();
+        feasibleLikelihood.initByName("data", feasibleAlignment, "tree", tree, "siteModel", siteModel, "branchRateModel", clockModel, "origin", origin, "arrayLength", new IntegerParameter("5"));
+        assertTrue(!Double.isInfinite(feasibleLikelihood.calculateLogP()));
+
+        SciPhyMultiBarcodeTreeLikelihood likelihood = new SciPhyMultiBarcodeTreeLikelihood();
+        likelihood.initByName("alignment", Arrays.asList(feasibleAlignment, alignment2), "tree", tree, "siteModel", siteModel,
+                "branchRateModel", clockModel, "origin", origin, "arrayLength", new IntegerParameter("5 4"));
+
+        assertEquals(Double.NEGATIVE_INFINITY, likelihood.calculateLogP());
+        assertEquals(Double.NEGATIVE_INFINITY, likelihood.getBarcodeLogP(1));
+        // the feasible barcode is not evaluated
+        assertTrue(Double.isNaN(likelihood.getBarcodeLogP(0)));
+        // the tree is not visited
+        assertEquals(0, likelihood.getUpdatedNodeCount());
+        assertEquals(1, likelihood.getRejectedCalculationCount());
+        assertEquals(0, likelihood.getFullCalculationCount());
+    }
+
+    @Test
+    public void testTreeOlderThanOriginSetsAllBarcodes() {
+
+        SciPhyMultiBarcodeTreeLikelihood likelihood = new SciPhyMultiBarcodeTreeLikelihood();
+        likelihood.initByName("alignment", Arrays.asList(alignment1, alignment2), "tree", tree, "siteModel", siteM,
+                "branchRateModel", clockModel, "origin", origin, "arrayLength", new IntegerParameter("5 4"));
+        assertTrue(!Double.isInfinite(likelihood.calculateLogP()));
+
+        // the root is at height 5
+        origin.setValue(4.0);
+        assertEquals(Double.NEGATIVE_INFINITY, likelihood.calculateLogP());
+        assertEquals(Double.NEGATIVE_INFINITY, likelihood.getCurrentLogP());
+        for (int b = 0; b < 2; b++) {
+            assertEquals(Double.NEGATIVE_INFINITY, likelihood.getBarcodeLogP(b));
+        }
+        origin.setValue(6.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExceptionForArrayLengthPerAlignment() {
+
+        SciPhyMultiBarcodeTreeLikelihood likelihood = new SciPhyMultiBarcodeTreeLikelihood();
+        likelihood.initByName("alignment", Arrays.asList(alignment1, alignment2), "tree", tree, "siteModel", siteM,
+                "branchRateModel", clockModel, "origin", origin, "arrayLength", new IntegerParameter("5"));
+    }
+
+    @Test
+    public void testExceptionForLeafMissingInAlignment() {
+
+        // the second barcode was not sequenced in CHILD2
+        Alignment alignment3 = new Alignment();
+        alignment3.initByName("sequence", new Sequence("CHILD3", "1,1,0,0"), "dataType", "integer");
+        alignment3.initByName("sequence", new Sequence("CHILD1", "2,0,0,0"), "dataType", "integer");
+        alignment3.initByName("sequence", new Sequence("CHILD4", "2,1,2,2"), "dataType", "integer");
+        alignment3.setID("barcode3");
+
+        SciPhyMultiBarcodeTreeLikelihood likelihood = new SciPhyMultiBarcodeTreeLikelihood();
+        try {
+            likelihood.initByName("alignment", Arrays.asList(alignment1, alignment3), "tree", tree, "siteModel", siteM,
+                    "branchRateModel", clockModel, "origin", origin, "arrayLength", new IntegerParameter("5 4"));
+            fail("a leaf without sequence is not paired with the sequence of another taxon");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("CHILD2") && e.getMessage().contains("barcode3"));
+        }
+    }
+
+}
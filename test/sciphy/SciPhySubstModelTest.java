@@ -10,6 +10,7 @@ import org.apache.commons.math.distribution.PoissonDistributionImpl;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.List;
 
 import static junit.framework.Assert.assertEquals;
@@ -298,6 +299,120 @@ public class SciPhySubstModelTest {
         assertEquals(expectedProbability, calculatedProbability, 1-10);
     }
 
+    @Test
+    public void testTransitionProbabilitiesPrimitiveOverloads(){
+
+        RealParameter stateFrequencies = new RealParameter("1.0 0 0 ");
+        RealParameter editProbabilities = new RealParameter("0.8 0.2");
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", stateFrequencies, "estimate", false);
+        substModel.initByName( "editProbabilities", editProbabilities, "frequencies" ,frequencies);
+
+        int targetBClength = 5;
+
+        // start state 2,1,0,0,0 and end state 2,1,1,2,0: prefixes of length 2 and 4 of the edits 2,1,1,2
+        int[] startSequence = new int[]{2, 1, 0, 0, 0};
+        int[] endSequence = new int[]{2, 1, 1, 2, 0};
+        int[] edits = new int[]{2, 1, 1, 2};
+
+        double[] poissonProbabilities = new double[targetBClength + 1];
+        double[] absorbingStateProbabilities = new double[targetBClength + 1];
+        substModel.getPoissonProbabilities(0.5, poissonProbabilities, absorbingStateProbabilities);
+
+        double listProbability = substModel.getSequenceTransitionProbability(Arrays.asList(2, 1, 0, 0, 0), Arrays.asList(2, 1, 1, 2, 0), 0.5, targetBClength);
+        double arrayProbability = substModel.getSequenceTransitionProbability(startSequence, endSequence, 0.5, targetBClength);
+        double prefixProbability = substModel.getSequenceTransitionProbability(edits, 2, 4, poissonProbabilities, absorbingStateProbabilities, targetBClength);
+
+        assertEquals(0.012130613194252673, arrayProbability, 1e-10);
+        assertEquals(listProbability, arrayProbability, 0.0);
+        assertEquals(listProbability, prefixProbability, 0.0);
+
+        // saturation
+        double absorbingProbability = substModel.getSequenceTransitionProbability(new int[]{2, 1, 1, 2, 2}, 2, 5, poissonProbabilities, absorbingStateProbabilities, targetBClength);
+        assertEquals(4.6040569494306294E-4, absorbingProbability, 1e-10);
+    }
+
+    @Test
+    public void testInsertFactorsTable(){
+
+        RealParameter stateFrequencies = new RealParameter("1.0 0 0 0");
+        RealParameter editProbabilities = new RealParameter("0.5 0.3 0.2");
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", stateFrequencies, "estimate", false);
+        substModel.initByName( "editProbabilities", editProbabilities, "frequencies" ,frequencies);
+
+        int[] edits = new int[]{3, 1, 2, 2, 1};
+        double[][] insertFactors = new double[edits.length + 1][];
+        for (int from = 0; from <= edits.length; from++) {
+            insertFactors[from] = new double[edits.length - from + 1];
+        }
+        double[] logPrefixProducts = new double[edits.length + 1];
+        substModel.getInsertFactors(edits, insertFactors, logPrefixProducts);
+
+        for (int from = 0; from <= edits.length; from++) {
+            for (int to = from; to <= edits.length; to++) {
+                assertEquals(substModel.combinedInsertProbabilities(edits, from, to), insertFactors[from][to - from], 0.0);
+            }
+            assertEquals(Math.log(insertFactors[0][from]), logPrefixProducts[from], 1e-12);
+        }
+    }
+
+    @Test
+    public void testPoissonProbabilitiesTable(){
+
+        RealParameter stateFrequencies = new RealParameter("1.0 0 0 ");
+        RealParameter editProbabilities = new RealParameter("0.8 0.2");
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", stateFrequencies, "estimate", false);
+        substModel.initByName( "editProbabilities", editProbabilities, "frequencies" ,frequencies);
+
+        int targetBClength = 5;
+        double[] poissonProbabilities = new double[targetBClength + 1];
+        double[] absorbingStateProbabilities = new double[targetBClength + 1];
+        substModel.getPoissonProbabilities(0.5, poissonProbabilities, absorbingStateProbabilities);
+
+        // the tables hold the same values as the poisson distribution used for single transitions
+        org.apache.commons.math.distribution.PoissonDistribution dist = new PoissonDistributionImpl(0.5);
+        for (int i = 0; i <= targetBClength; i++) {
+            assertEquals(dist.probability(i), poissonProbabilities[i], 1e-15);
+            assertEquals(substModel.calculateAbsorbingStateProbability(dist, i), absorbingStateProbabilities[i], 1e-15);
+        }
+    }
+
+    @Test
+    public void testLogPoissonProbabilitiesTable(){
+
+        RealParameter stateFrequencies = new RealParameter("1.0 0 0 ");
+        RealParameter editProbabilities = new RealParameter("0.8 0.2");
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", stateFrequencies, "estimate", false);
+        substModel.initByName( "editProbabilities", editProbabilities, "frequencies" ,frequencies);
+
+        // the log tables hold the logs of the linear tables, for short, medium and long branches
+        int targetBClength = 5;
+        for (double distance : new double[]{0.01, 0.5, 3.0, 30.0}) {
+            double[] poissonProbabilities = new double[targetBClength + 1];
+            double[] absorbingStateProbabilities = new double[targetBClength + 1];
+            substModel.getPoissonProbabilities(distance, poissonProbabilities, absorbingStateProbabilities);
+            double[] logPoissonProbabilities = new double[targetBClength + 1];
+            double[] logAbsorbingStateProbabilities = new double[targetBClength + 1];
+            substModel.getLogPoissonProbabilities(distance, logPoissonProbabilities, logAbsorbingStateProbabilities);
+
+            for (int i = 0; i <= targetBClength; i++) {
+                assertEquals(Math.log(poissonProbabilities[i]), logPoissonProbabilities[i], 1e-9);
+                // the linear tables lose precision in the tail, compare on the probability scale
+                assertEquals(absorbingStateProbabilities[i], Math.exp(logAbsorbingStateProbabilities[i]), 1e-15);
+            }
+        }
+
+        // far in the tail, the log tables do not underflow
+        double[] logPoissonProbabilities = new double[targetBClength + 1];
+        double[] logAbsorbingStateProbabilities = new double[targetBClength + 1];
+        substModel.getLogPoissonProbabilities(1e-80, logPoissonProbabilities, logAbsorbingStateProbabilities);
+        assertEquals(5 * Math.log(1e-80) - Math.log(120), logPoissonProbabilities[5], 1e-9);
+        assertEquals(5 * Math.log(1e-80) - Math.log(120), logAbsorbingStateProbabilities[5], 1e-9);
+    }
+
     //-----------------------------------------------------------------------------------//
     // Validate that the PoissonDistributionImpl we use to calculate the poisson probabilities
     // behaves as expected. We test this by comparing against the values by Rpois.